@@ -0,0 +1,171 @@
+package se.kjellstrand.blurrybackgroundviewdemo.bench;
+
+import java.util.Locale;
+import java.util.Random;
+
+import se.kjellstrand.blurrybackgroundviewdemo.BoxBlur;
+import se.kjellstrand.blurrybackgroundviewdemo.PixelBuffer;
+import se.kjellstrand.blurrybackgroundviewdemo.PixelOps;
+
+/**
+ * Benchmarks the per-frame stages of BlurredBackgroundLayout on a plain JVM,
+ * using the pure Java ports of the stages: the scaled redraw into tmpBitmap,
+ * the blur, the MULTIPLY darken and the copy back, a whole frame of all four
+ * and the same frame rendered by the fused blur of BoxBlur. Sweeps screen
+ * size, capture scale factor and blur radius and prints one line per stage
+ * and configuration.
+ *
+ * Arguments: --quick for a short sweep, --csv for comma separated output.
+ */
+public class BlurBenchmark {
+
+    // Screen sizes the background is captured from.
+    private static final int[][] SCREEN_SIZES = new int[][] {
+            {
+                    720, 1280
+            }, {
+                    1080, 1920
+            }, {
+                    1440, 2560
+            }
+    };
+
+    // Capture scale factors, BackgroundEffect.SCALE_DOWN_FACTOR is 0.15.
+    private static final float[] SCALE_FACTORS = new float[] {
+            0.1f, 0.15f, 0.25f
+    };
+
+    private static final float[] RADII = new float[] {
+            4f, 8f, 16f, 25f
+    };
+
+    // Scale and darken fraction of a frame half way through the animation.
+    private static final float FRAME_SCALE = 0.975f;
+
+    private static final float FRAME_DARKEN = 0.9f;
+
+    public static void main(String[] args) {
+        boolean quick = false;
+        boolean csv = false;
+        for (String arg : args) {
+            if (arg.equals("--quick")) {
+                quick = true;
+            } else if (arg.equals("--csv")) {
+                csv = true;
+            } else {
+                System.err.println("Unknown argument " + arg);
+                System.exit(1);
+            }
+        }
+
+        Measurement measurement = quick ? new Measurement(100, 200) : new Measurement(500, 1000);
+        int[][] screenSizes = quick ? new int[][] {
+                SCREEN_SIZES[1]
+        } : SCREEN_SIZES;
+        float[] scaleFactors = quick ? new float[] {
+                0.15f
+        } : SCALE_FACTORS;
+
+        printHeader(csv);
+        BoxBlur boxBlur = new BoxBlur();
+        for (int[] screenSize : screenSizes) {
+            for (float scaleFactor : scaleFactors) {
+                benchmark(measurement, boxBlur, screenSize, scaleFactor, csv);
+            }
+        }
+        boxBlur.release();
+    }
+
+    private static void benchmark(Measurement measurement, final BoxBlur boxBlur, int[] screenSize,
+            float scaleFactor, boolean csv) {
+        final int width = (int) (screenSize[0] * scaleFactor);
+        final int height = (int) (screenSize[1] * scaleFactor);
+        final PixelBuffer input = createInput(width, height);
+        final PixelBuffer tmp = new PixelBuffer(width, height);
+        final PixelBuffer blurred = new PixelBuffer(width, height);
+        final PixelBuffer output = new PixelBuffer(width, height);
+        final int darkenColor = PixelOps.darkenColor(FRAME_DARKEN);
+        String config = screenSize[0] + "x" + screenSize[1] + "@" + scaleFactor;
+
+        print(csv, config, width, height, "scale", 0, measurement.measure(new Measurement.Operation() {
+            @Override
+            public void run() {
+                // The layout applies its scale matrix twice, to the canvas
+                // and to the drawn bitmap.
+                PixelOps.scale(input, tmp, FRAME_SCALE * FRAME_SCALE);
+            }
+        }));
+        print(csv, config, width, height, "darken", 0, measurement.measure(new Measurement.Operation() {
+            @Override
+            public void run() {
+                PixelOps.copy(input, output);
+                PixelOps.multiply(output, darkenColor);
+            }
+        }));
+        print(csv, config, width, height, "copy", 0, measurement.measure(new Measurement.Operation() {
+            @Override
+            public void run() {
+                PixelOps.copy(blurred, output);
+            }
+        }));
+        for (final float radius : RADII) {
+            print(csv, config, width, height, "blur", radius, measurement.measure(new Measurement.Operation() {
+                @Override
+                public void run() {
+                    boxBlur.blur(input, blurred, radius);
+                }
+            }));
+            print(csv, config, width, height, "frame", radius, measurement.measure(new Measurement.Operation() {
+                @Override
+                public void run() {
+                    PixelOps.scale(input, tmp, FRAME_SCALE * FRAME_SCALE);
+                    boxBlur.blur(tmp, blurred, radius);
+                    PixelOps.copy(blurred, output);
+                    PixelOps.multiply(output, darkenColor);
+                }
+            }));
+            print(csv, config, width, height, "fused", radius, measurement.measure(new Measurement.Operation() {
+                @Override
+                public void run() {
+                    boxBlur.blur(input, output, radius, FRAME_SCALE * FRAME_SCALE, darkenColor);
+                }
+            }));
+        }
+    }
+
+    // A noisy gradient, so that the stages can not take shortcuts on flat
+    // areas.
+    static PixelBuffer createInput(int width, int height) {
+        Random random = new Random(width * 31 + height);
+        PixelBuffer pixels = new PixelBuffer(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(32)) & 0xff;
+                int g = (y * 255 / height + random.nextInt(32)) & 0xff;
+                int b = random.nextInt(256);
+                pixels.set(x, y, 0xff000000 | (r << 16) | (g << 8) | b);
+            }
+        }
+        return pixels;
+    }
+
+    private static void printHeader(boolean csv) {
+        if (csv) {
+            System.out.println("config,width,height,stage,radius,ops_per_s,p50_us,p90_us,p99_us,max_us,bytes_per_op,"
+                    + "gc_count,gc_ms");
+        } else {
+            System.out.println(String.format(Locale.US, "%-16s %9s %-6s %6s %10s %9s %9s %9s %9s %10s %4s %6s",
+                    "config", "size", "stage", "radius", "ops/s", "p50 us", "p90 us", "p99 us", "max us", "B/op",
+                    "gc", "gc ms"));
+        }
+    }
+
+    private static void print(boolean csv, String config, int width, int height, String stage, float radius,
+            Measurement.Result result) {
+        String format = csv ? "%s,%d,%d,%s,%.0f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%d,%d"
+                : "%-16s %4dx%-4d %-6s %6.0f %10.1f %9.1f %9.1f %9.1f %9.1f %10.1f %4d %6d";
+        System.out.println(String.format(Locale.US, format, config, width, height, stage, radius,
+                result.opsPerSecond, result.p50Nanos / 1e3, result.p90Nanos / 1e3, result.p99Nanos / 1e3,
+                result.maxNanos / 1e3, result.bytesPerOp, result.gcCount, result.gcMillis));
+    }
+}
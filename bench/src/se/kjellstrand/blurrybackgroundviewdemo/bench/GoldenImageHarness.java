@@ -0,0 +1,515 @@
+package se.kjellstrand.blurrybackgroundviewdemo.bench;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+import se.kjellstrand.blurrybackgroundviewdemo.BackgroundEffect;
+import se.kjellstrand.blurrybackgroundviewdemo.BlurLevels;
+import se.kjellstrand.blurrybackgroundviewdemo.BoxBlur;
+import se.kjellstrand.blurrybackgroundviewdemo.PixelBuffer;
+import se.kjellstrand.blurrybackgroundviewdemo.PixelOps;
+
+/**
+ * Regression harness of the look and cost of the background effect. Feeds the
+ * drawables of res/drawable, as the content of a screen, through the capture,
+ * scale, blur and darken stages of BlurredBackgroundLayout at several
+ * animation fractions, on a plain JVM using the pure Java ports of the stages.
+ *
+ * Each frame is compared with a stored golden image using PerceptualDiff, and
+ * each stage is timed with Measurement. The results are written as key=value
+ * lines to a report, and the median time of each stage is compared with the
+ * stored baseline of the machine class, the OS and CPU architecture, in
+ * bench/baselines. Exits with 1 if a frame looks different from its golden
+ * image, a stage has become slower than the baseline by more than the
+ * threshold, or there is no baseline for the machine class.
+ *
+ * Each blurred frame is also rendered at the quality levels of the adaptive
+ * blur of BlurLadder that the blur radius allows, and compared with the frame
+ * blurred at full size. A level that looks more different than
+ * MAX_LADDER_P99_DELTA_E and MAX_LADDER_MEAN_DELTA_E is also a failure.
+ *
+ * The blur of each captured drawable is also compared with ReferenceBlur,
+ * the gaussian of ScriptIntrinsicBlur, over radii 0 - 25. A blur that differs
+ * by more than MAX_REFERENCE_MEAN_LEVELS on average or MAX_REFERENCE_LEVELS
+ * at any pixel, the accuracy documented by BoxBlur, is also a failure.
+ *
+ * Arguments: --quick for shorter measurements, --update-golden to write the
+ * golden images from the current frames, --update-baseline to write the
+ * baseline of the machine class from the current timings,
+ * --allow-missing-baseline to only report the timings when there is no
+ * baseline, --threshold followed by the allowed slowdown as a fraction, 1.0
+ * if not given as timings vary between machines of a class. Run from the
+ * repository root.
+ */
+public class GoldenImageHarness {
+
+    private static final File DRAWABLE_DIRECTORY = new File("res/drawable");
+
+    private static final File GOLDEN_DIRECTORY = new File("bench/golden");
+
+    private static final File BASELINE_DIRECTORY = new File("bench/baselines");
+
+    private static final File REPORT_FILE = new File("bench/out/report.properties");
+
+    // The screen the drawables are shown on.
+    private static final int SCREEN_WIDTH = 1080;
+
+    private static final int SCREEN_HEIGHT = 1920;
+
+    // Animation fractions to render, hidden, half way and shown.
+    private static final float[] FRACTIONS = new float[] {
+            0f, 0.5f, 1f
+    };
+
+    private static final String[] STAGES = new String[] {
+            "capture", "scale", "blur", "darken"
+    };
+
+    // A frame passes if at most 1% of its pixels differ noticeably from the
+    // golden image, and on average the difference is below noticeable.
+    private static final double MAX_P99_DELTA_E = 2.3;
+
+    private static final double MAX_MEAN_DELTA_E = 1.0;
+
+    // A quality level of the adaptive blur passes if at most 1% of its pixels,
+    // along the black edge of the scaled background, differ clearly from the
+    // full size blur, and on average the difference is below noticeable.
+    private static final double MAX_LADDER_P99_DELTA_E = 5.0;
+
+    private static final double MAX_LADDER_MEAN_DELTA_E = 1.5;
+
+    // BoxBlur passes if its blur of a drawable differs from the gaussian by
+    // at most this many levels per channel on average, and at any pixel.
+    private static final double MAX_REFERENCE_MEAN_LEVELS = 1.5;
+
+    private static final int MAX_REFERENCE_LEVELS = 20;
+
+    // Steps of the blur radii compared with the gaussian, over 0 - 25.
+    private static final float REFERENCE_RADIUS_STEP = 0.5f;
+
+    private static final float QUICK_REFERENCE_RADIUS_STEP = 2.5f;
+
+    private static final double DEFAULT_THRESHOLD = 1.0;
+
+    // Slowdowns smaller than this are timing noise, whatever the threshold.
+    private static final double MIN_REGRESSION_MICROS = 10;
+
+    public static void main(String[] args) throws IOException {
+        boolean quick = false;
+        boolean updateGolden = false;
+        boolean updateBaseline = false;
+        boolean allowMissingBaseline = false;
+        double threshold = DEFAULT_THRESHOLD;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--quick")) {
+                quick = true;
+            } else if (args[i].equals("--update-golden")) {
+                updateGolden = true;
+            } else if (args[i].equals("--update-baseline")) {
+                updateBaseline = true;
+            } else if (args[i].equals("--allow-missing-baseline")) {
+                allowMissingBaseline = true;
+            } else if (args[i].equals("--threshold") && i + 1 < args.length) {
+                threshold = Double.parseDouble(args[++i]);
+            } else {
+                System.err.println("Unknown argument " + args[i]);
+                System.exit(1);
+            }
+        }
+        System.setProperty("java.awt.headless", "true");
+
+        File[] drawables = DRAWABLE_DIRECTORY.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String name) {
+                return name.endsWith(".png");
+            }
+        });
+        if (drawables == null || drawables.length == 0) {
+            System.err.println("No drawables in " + DRAWABLE_DIRECTORY + ", run from the repository root.");
+            System.exit(1);
+        }
+        Arrays.sort(drawables);
+
+        Measurement measurement = quick ? new Measurement(5, 10) : new Measurement(20, 50);
+        int width = (int) (SCREEN_WIDTH * BackgroundEffect.SCALE_DOWN_FACTOR);
+        int height = (int) (SCREEN_HEIGHT * BackgroundEffect.SCALE_DOWN_FACTOR);
+        Frame frame = new Frame(width, height);
+        List<List<Long>> stageNanos = new ArrayList<List<Long>>();
+        for (int i = 0; i < STAGES.length; i++) {
+            stageNanos.add(new ArrayList<Long>());
+        }
+
+        REPORT_FILE.getParentFile().mkdirs();
+        PrintWriter report = new PrintWriter(new OutputStreamWriter(new FileOutputStream(REPORT_FILE), "UTF-8"));
+        report.println("images=" + drawables.length);
+        report.println(String.format(Locale.US, "size=%dx%d", width, height));
+        report.println(String.format(Locale.US, "golden.max.p99.delta.e=%.2f", MAX_P99_DELTA_E));
+        report.println(String.format(Locale.US, "golden.max.mean.delta.e=%.2f", MAX_MEAN_DELTA_E));
+
+        int goldenFailures = 0;
+        int ladderFailures = 0;
+        int referenceFailures = 0;
+        if (updateGolden) {
+            GOLDEN_DIRECTORY.mkdirs();
+        }
+        for (File drawable : drawables) {
+            BufferedImage source = ImageIO.read(drawable);
+            String name = drawable.getName().substring(0, drawable.getName().lastIndexOf('.'));
+            for (float fraction : FRACTIONS) {
+                frame.render(source, fraction);
+                String key = String.format(Locale.US, "%s.f%.2f", name, fraction);
+                File golden = new File(GOLDEN_DIRECTORY, key + ".png");
+                if (updateGolden) {
+                    writeImage(frame.output, golden);
+                } else if (!compareGolden(frame.output, golden, key, report)) {
+                    goldenFailures++;
+                }
+                ladderFailures += compareLadderLevels(frame, fraction, key, report);
+                Measurement.Result[] results = frame.measure(measurement, source, fraction);
+                for (int i = 0; i < STAGES.length; i++) {
+                    stageNanos.get(i).add(Long.valueOf(results[i].p50Nanos));
+                    report.println(String.format(Locale.US, "stage.%s.%s.p50.us=%.1f", STAGES[i], key,
+                            results[i].p50Nanos / 1e3));
+                }
+            }
+            referenceFailures += compareReferenceBlur(frame, source, name,
+                    quick ? QUICK_REFERENCE_RADIUS_STEP : REFERENCE_RADIUS_STEP, report);
+        }
+        frame.release();
+
+        double[] stageMicros = new double[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            stageMicros[i] = median(stageNanos.get(i)) / 1e3;
+            report.println(String.format(Locale.US, "stage.%s.median.p50.us=%.1f", STAGES[i], stageMicros[i]));
+        }
+
+        int timingFailures = 0;
+        File baselineFile = new File(BASELINE_DIRECTORY, getMachineClass() + ".properties");
+        report.println("timing.baseline=" + baselineFile);
+        if (updateBaseline) {
+            writeBaseline(baselineFile, stageMicros);
+        } else if (!baselineFile.isFile()) {
+            if (allowMissingBaseline) {
+                System.err.println("Warning: no baseline in " + baselineFile + ", timings not checked.");
+            } else {
+                System.err.println("No baseline in " + baselineFile
+                        + ", run with --update-baseline to write one or --allow-missing-baseline.");
+                timingFailures++;
+            }
+        } else {
+            Properties baseline = readProperties(baselineFile);
+            report.println(String.format(Locale.US, "timing.threshold=%.2f", threshold));
+            for (int i = 0; i < STAGES.length; i++) {
+                String value = baseline.getProperty("stage." + STAGES[i] + ".median.p50.us");
+                if (value == null) {
+                    continue;
+                }
+                double baselineMicros = Double.parseDouble(value);
+                boolean regressed = stageMicros[i] > baselineMicros * (1 + threshold)
+                        && stageMicros[i] - baselineMicros > MIN_REGRESSION_MICROS;
+                report.println(String.format(Locale.US, "timing.%s.ratio=%.3f", STAGES[i], stageMicros[i]
+                        / baselineMicros));
+                report.println("timing." + STAGES[i] + ".pass=" + !regressed);
+                if (regressed) {
+                    System.err.println(String.format(Locale.US, "Stage %s regressed: %.1f us, baseline %.1f us",
+                            STAGES[i], stageMicros[i], baselineMicros));
+                    timingFailures++;
+                }
+            }
+        }
+
+        report.println("golden.failures=" + goldenFailures);
+        report.println("ladder.failures=" + ladderFailures);
+        report.println("reference.failures=" + referenceFailures);
+        report.println("timing.failures=" + timingFailures);
+        boolean pass = goldenFailures == 0 && ladderFailures == 0 && referenceFailures == 0 && timingFailures == 0;
+        report.println("pass=" + pass);
+        report.close();
+        System.out.println(String.format(Locale.US,
+                "%d golden failures, %d ladder failures, %d reference failures, %d timing failures, report in %s",
+                goldenFailures, ladderFailures, referenceFailures, timingFailures, REPORT_FILE));
+        if (!pass) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean compareGolden(PixelBuffer output, File golden, String key, PrintWriter report)
+            throws IOException {
+        if (!golden.isFile()) {
+            System.err.println("No golden image " + golden + ", run with --update-golden to write it.");
+            report.println("golden." + key + ".pass=false");
+            return false;
+        }
+        BufferedImage image = ImageIO.read(golden);
+        if (image.getWidth() != output.getWidth() || image.getHeight() != output.getHeight()) {
+            System.err.println("Golden image " + golden + " has a different size.");
+            report.println("golden." + key + ".pass=false");
+            return false;
+        }
+        int[] expected = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        PerceptualDiff.Result diff = PerceptualDiff.compare(expected, output.getPixels());
+        boolean pass = diff.p99DeltaE <= MAX_P99_DELTA_E && diff.meanDeltaE <= MAX_MEAN_DELTA_E;
+        report.println(String.format(Locale.US, "golden.%s.mean.delta.e=%.3f", key, diff.meanDeltaE));
+        report.println(String.format(Locale.US, "golden.%s.p99.delta.e=%.3f", key, diff.p99DeltaE));
+        report.println(String.format(Locale.US, "golden.%s.max.delta.e=%.3f", key, diff.maxDeltaE));
+        report.println("golden." + key + ".pass=" + pass);
+        if (!pass) {
+            System.err.println(String.format(Locale.US, "%s differs from its golden image, mean %.2f, p99 %.2f",
+                    key, diff.meanDeltaE, diff.p99DeltaE));
+        }
+        return pass;
+    }
+
+    // Compare the blur of a captured drawable with the gaussian over radii 0
+    // - 25, returns the number of radii that fail.
+    private static int compareReferenceBlur(Frame frame, BufferedImage source, String name, float radiusStep,
+            PrintWriter report) {
+        int failures = 0;
+        double worstMeanLevels = 0;
+        int worstLevels = 0;
+        frame.capture(source);
+        for (float radius = 0; radius <= 25; radius += radiusStep) {
+            ReferenceBlur.Result diff = frame.compareReference(radius);
+            worstMeanLevels = Math.max(worstMeanLevels, diff.meanLevels);
+            worstLevels = Math.max(worstLevels, diff.maxLevels);
+            if (diff.meanLevels > MAX_REFERENCE_MEAN_LEVELS || diff.maxLevels > MAX_REFERENCE_LEVELS) {
+                System.err.println(String.format(Locale.US,
+                        "%s blurred by %.1f differs from the gaussian, mean %.2f, max %d levels", name, radius,
+                        diff.meanLevels, diff.maxLevels));
+                failures++;
+            }
+        }
+        report.println(String.format(Locale.US, "reference.%s.mean.levels=%.3f", name, worstMeanLevels));
+        report.println("reference." + name + ".max.levels=" + worstLevels);
+        report.println("reference." + name + ".pass=" + (failures == 0));
+        return failures;
+    }
+
+    // Compare the levels of the adaptive blur with the full size blur of the
+    // last rendered frame, returns the number of levels that fail.
+    private static int compareLadderLevels(Frame frame, float fraction, String key, PrintWriter report) {
+        int failures = 0;
+        int maxLevel = BlurLevels.getMaxLevel(BackgroundEffect.getBlurRadius(fraction), frame.mipLevels);
+        for (int level = 1; level <= maxLevel; level++) {
+            frame.renderLevel(fraction, level);
+            PerceptualDiff.Result diff = PerceptualDiff.compare(frame.blurred.getPixels(),
+                    frame.levelOutput.getPixels());
+            boolean pass = diff.p99DeltaE <= MAX_LADDER_P99_DELTA_E && diff.meanDeltaE <= MAX_LADDER_MEAN_DELTA_E;
+            String levelKey = key + ".l" + level;
+            report.println(String.format(Locale.US, "ladder.%s.mean.delta.e=%.3f", levelKey, diff.meanDeltaE));
+            report.println(String.format(Locale.US, "ladder.%s.p99.delta.e=%.3f", levelKey, diff.p99DeltaE));
+            report.println("ladder." + levelKey + ".pass=" + pass);
+            if (!pass) {
+                System.err.println(String.format(Locale.US,
+                        "%s differs from the full size blur, mean %.2f, p99 %.2f", levelKey, diff.meanDeltaE,
+                        diff.p99DeltaE));
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private static void writeImage(PixelBuffer pixels, File file) throws IOException {
+        BufferedImage image = new BufferedImage(pixels.getWidth(), pixels.getHeight(), BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, pixels.getWidth(), pixels.getHeight(), pixels.getPixels(), pixels.getOffset(),
+                pixels.getStride());
+        ImageIO.write(image, "png", file);
+    }
+
+    private static void writeBaseline(File baselineFile, double[] stageMicros) throws IOException {
+        BASELINE_DIRECTORY.mkdirs();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(baselineFile), "UTF-8"));
+        writer.println("# Median p50 time per stage in microseconds, written by GoldenImageHarness --update-baseline.");
+        writer.println("# " + Runtime.getRuntime().availableProcessors() + " CPUs, " + System.getProperty("java.vm.name")
+                + " " + System.getProperty("java.version"));
+        for (int i = 0; i < STAGES.length; i++) {
+            writer.println(String.format(Locale.US, "stage.%s.median.p50.us=%.1f", STAGES[i], stageMicros[i]));
+        }
+        writer.close();
+    }
+
+    // The class of machine the timings are measured on, such as
+    // linux-amd64, which names its baseline.
+    private static String getMachineClass() {
+        String name = System.getProperty("os.name") + "-" + System.getProperty("os.arch");
+        return name.toLowerCase(Locale.US).replaceAll("[^a-z0-9]+", "-");
+    }
+
+    private static Properties readProperties(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    private static double median(List<Long> values) {
+        Long[] sorted = values.toArray(new Long[values.size()]);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2].longValue();
+    }
+
+    /**
+     * The buffers of one background frame and the stages that render it, the
+     * same as BlurredBackgroundLayout renders a frame on the CPU.
+     */
+    private static class Frame {
+        private final BufferedImage captureImage;
+
+        private final int[] capturePixels;
+
+        private final PixelBuffer input;
+
+        private final PixelBuffer tmp;
+
+        private final PixelBuffer blurred;
+
+        private final PixelBuffer output;
+
+        // The mips of the adaptive blur and their scaled and blurred pixels,
+        // index 0 is the input itself, and a level upsampled to the input size.
+        private final PixelBuffer[] mips = new PixelBuffer[BlurLevels.MAX_LEVEL + 1];
+
+        private final PixelBuffer[] scaledMips = new PixelBuffer[BlurLevels.MAX_LEVEL + 1];
+
+        private final PixelBuffer[] blurredMips = new PixelBuffer[BlurLevels.MAX_LEVEL + 1];
+
+        private final PixelBuffer levelOutput;
+
+        // Highest level that has a mip.
+        private int mipLevels = 0;
+
+        private final BoxBlur boxBlur = new BoxBlur();
+
+        Frame(int width, int height) {
+            captureImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            capturePixels = ((DataBufferInt) captureImage.getRaster().getDataBuffer()).getData();
+            input = new PixelBuffer(capturePixels, 0, width, width, height);
+            tmp = new PixelBuffer(width, height);
+            blurred = new PixelBuffer(width, height);
+            output = new PixelBuffer(width, height);
+            levelOutput = new PixelBuffer(width, height);
+            mips[0] = input;
+            // The mip sizes of BlurLadder.prepare.
+            for (int i = 1; i <= BlurLevels.MAX_LEVEL; i++) {
+                int mipWidth = (mips[i - 1].getWidth() + 1) / 2;
+                int mipHeight = (mips[i - 1].getHeight() + 1) / 2;
+                if (mipWidth < BlurLevels.MIN_MIP_SIZE || mipHeight < BlurLevels.MIN_MIP_SIZE) {
+                    break;
+                }
+                mips[i] = new PixelBuffer(mipWidth, mipHeight);
+                scaledMips[i] = new PixelBuffer(mipWidth, mipHeight);
+                blurredMips[i] = new PixelBuffer(mipWidth, mipHeight);
+                mipLevels = i;
+            }
+        }
+
+        void render(BufferedImage source, float fraction) {
+            capture(source);
+            scale(fraction);
+            blur(fraction);
+            darken(fraction);
+        }
+
+        Measurement.Result[] measure(Measurement measurement, final BufferedImage source, final float fraction) {
+            return new Measurement.Result[] {
+                    measurement.measure(new Measurement.Operation() {
+                        @Override
+                        public void run() {
+                            capture(source);
+                        }
+                    }), measurement.measure(new Measurement.Operation() {
+                        @Override
+                        public void run() {
+                            scale(fraction);
+                        }
+                    }), measurement.measure(new Measurement.Operation() {
+                        @Override
+                        public void run() {
+                            blur(fraction);
+                        }
+                    }), measurement.measure(new Measurement.Operation() {
+                        @Override
+                        public void run() {
+                            darken(fraction);
+                        }
+                    })
+            };
+        }
+
+        // The drawable stretched over the screen, drawn with filtering into a
+        // black snapshot at the capture scale, like BackgroundCapture.
+        void capture(BufferedImage source) {
+            Graphics2D graphics = captureImage.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setColor(java.awt.Color.BLACK);
+            graphics.fillRect(0, 0, captureImage.getWidth(), captureImage.getHeight());
+            graphics.drawImage(source, 0, 0, captureImage.getWidth(), captureImage.getHeight(), null);
+            graphics.dispose();
+        }
+
+        void scale(float fraction) {
+            PixelOps.scale(input, tmp, getScale(fraction));
+        }
+
+        // The layout applies its scale matrix twice, to the canvas and to the
+        // drawn bitmap.
+        private static float getScale(float fraction) {
+            float scale = BackgroundEffect.getScale(fraction);
+            return scale * scale;
+        }
+
+        void blur(float fraction) {
+            boxBlur.blur(tmp, blurred, BackgroundEffect.getBlurRadius(fraction));
+        }
+
+        void darken(float fraction) {
+            PixelOps.copy(blurred, output);
+            PixelOps.multiply(output, PixelOps.darkenColor(BackgroundEffect.getDarken(fraction)));
+        }
+
+        // Render the blurred frame of the last captured input at a level of
+        // the adaptive blur into levelOutput, like BlurLadder.render.
+        void renderLevel(float fraction, int level) {
+            for (int i = 1; i <= level; i++) {
+                PixelOps.resize(mips[i - 1], mips[i]);
+            }
+            PixelOps.scaleFiltered(mips[level], scaledMips[level], getScale(fraction));
+            boxBlur.blur(scaledMips[level], blurredMips[level],
+                    BlurLevels.getLevelRadius(BackgroundEffect.getBlurRadius(fraction), level));
+            PixelOps.resize(blurredMips[level], levelOutput);
+        }
+
+        // Blur the last captured input with BoxBlur and with the gaussian, in
+        // blurred and tmp, and compare them.
+        ReferenceBlur.Result compareReference(float radius) {
+            ReferenceBlur.blur(input, tmp, radius);
+            boxBlur.blur(input, blurred, radius);
+            return ReferenceBlur.compare(tmp, blurred);
+        }
+
+        void release() {
+            boxBlur.release();
+        }
+    }
+}
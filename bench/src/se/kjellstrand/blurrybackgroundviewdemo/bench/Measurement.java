@@ -0,0 +1,143 @@
+package se.kjellstrand.blurrybackgroundviewdemo.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures an operation: runs it for a warmup period, then times every
+ * invocation for a measurement period. Reports throughput, latency
+ * percentiles, bytes allocated per operation by all threads and the garbage
+ * collections that happened while measuring.
+ */
+public class Measurement {
+
+    /**
+     * The operation to measure.
+     */
+    public interface Operation {
+        void run();
+    }
+
+    // Max number of timed invocations kept for the percentiles.
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+
+    private final long[] samples = new long[MAX_SAMPLES];
+
+    private final long warmupNanos;
+
+    private final long measureNanos;
+
+    /**
+     * @param warmupMillis Time to run the operation before measuring.
+     * @param measureMillis Time to measure the operation.
+     */
+    public Measurement(long warmupMillis, long measureMillis) {
+        this.warmupNanos = warmupMillis * 1000000L;
+        this.measureNanos = measureMillis * 1000000L;
+        THREAD_BEAN.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * Measure an operation.
+     *
+     * @param operation The operation.
+     * @return The result of the measurement.
+     */
+    public Result measure(Operation operation) {
+        long end = System.nanoTime() + warmupNanos;
+        while (System.nanoTime() < end) {
+            operation.run();
+        }
+
+        long gcCountBefore = getGcCount();
+        long gcMillisBefore = getGcMillis();
+        long allocatedBefore = getAllocatedBytes();
+        int count = 0;
+        long start = System.nanoTime();
+        end = start + measureNanos;
+        long now = start;
+        while (now < end && count < MAX_SAMPLES) {
+            operation.run();
+            long after = System.nanoTime();
+            samples[count++] = after - now;
+            now = after;
+        }
+        long elapsed = now - start;
+        long allocated = getAllocatedBytes() - allocatedBefore;
+
+        Arrays.sort(samples, 0, count);
+        Result result = new Result();
+        result.operations = count;
+        result.opsPerSecond = count * 1e9 / elapsed;
+        result.p50Nanos = samples[percentileIndex(count, 0.50)];
+        result.p90Nanos = samples[percentileIndex(count, 0.90)];
+        result.p99Nanos = samples[percentileIndex(count, 0.99)];
+        result.maxNanos = samples[count - 1];
+        result.bytesPerOp = allocated / (double) count;
+        result.gcCount = getGcCount() - gcCountBefore;
+        result.gcMillis = getGcMillis() - gcMillisBefore;
+        return result;
+    }
+
+    private static int percentileIndex(int count, double percentile) {
+        return Math.min(count - 1, (int) Math.ceil(percentile * count) - 1);
+    }
+
+    private static long getAllocatedBytes() {
+        long total = 0;
+        for (long bytes : THREAD_BEAN.getThreadAllocatedBytes(THREAD_BEAN.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : getGcBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : getGcBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static List<GarbageCollectorMXBean> getGcBeans() {
+        return ManagementFactory.getGarbageCollectorMXBeans();
+    }
+
+    /**
+     * The result of a measurement.
+     */
+    public static class Result {
+        public int operations;
+
+        public double opsPerSecond;
+
+        public long p50Nanos;
+
+        public long p90Nanos;
+
+        public long p99Nanos;
+
+        public long maxNanos;
+
+        public double bytesPerOp;
+
+        public long gcCount;
+
+        public long gcMillis;
+    }
+}
@@ -0,0 +1,96 @@
+package se.kjellstrand.blurrybackgroundviewdemo.bench;
+
+import java.util.Arrays;
+
+/**
+ * Compares two images by how different they look rather than by their exact
+ * pixel values. The difference of a pixel is the CIE76 delta E of the two
+ * colors in CIELAB, where a delta E of about 2.3 is just noticeable, so a
+ * change of the blur that moves many pixels by a level or two passes while a
+ * visible change does not.
+ */
+public class PerceptualDiff {
+
+    // The D65 white point.
+    private static final double WHITE_X = 0.95047;
+
+    private static final double WHITE_Y = 1.0;
+
+    private static final double WHITE_Z = 1.08883;
+
+    // Linear values of the 256 sRGB levels.
+    private static final double[] LINEAR = new double[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255.0;
+            LINEAR[i] = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+        }
+    }
+
+    /**
+     * The difference of two images.
+     */
+    public static class Result {
+        public double meanDeltaE;
+
+        public double p99DeltaE;
+
+        public double maxDeltaE;
+    }
+
+    /**
+     * Compare two images of the same size.
+     *
+     * @param expected Opaque ARGB pixels of the expected image.
+     * @param actual Opaque ARGB pixels of the actual image.
+     * @return The difference of the images.
+     */
+    public static Result compare(int[] expected, int[] actual) {
+        if (expected.length != actual.length) {
+            throw new IllegalArgumentException("Images of different sizes, " + expected.length + " and "
+                    + actual.length + " pixels.");
+        }
+        double[] deltaE = new double[expected.length];
+        double[] expectedLab = new double[3];
+        double[] actualLab = new double[3];
+        double sum = 0;
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] == actual[i]) {
+                continue;
+            }
+            toLab(expected[i], expectedLab);
+            toLab(actual[i], actualLab);
+            double dl = expectedLab[0] - actualLab[0];
+            double da = expectedLab[1] - actualLab[1];
+            double db = expectedLab[2] - actualLab[2];
+            deltaE[i] = Math.sqrt(dl * dl + da * da + db * db);
+            sum += deltaE[i];
+        }
+        Arrays.sort(deltaE);
+        Result result = new Result();
+        if (deltaE.length > 0) {
+            result.meanDeltaE = sum / deltaE.length;
+            result.p99DeltaE = deltaE[Math.min(deltaE.length - 1, (int) Math.ceil(0.99 * deltaE.length) - 1)];
+            result.maxDeltaE = deltaE[deltaE.length - 1];
+        }
+        return result;
+    }
+
+    // Convert an sRGB pixel to CIELAB.
+    private static void toLab(int pixel, double[] lab) {
+        double r = LINEAR[(pixel >> 16) & 0xff];
+        double g = LINEAR[(pixel >> 8) & 0xff];
+        double b = LINEAR[pixel & 0xff];
+        double fx = f((0.4124 * r + 0.3576 * g + 0.1805 * b) / WHITE_X);
+        double fy = f((0.2126 * r + 0.7152 * g + 0.0722 * b) / WHITE_Y);
+        double fz = f((0.0193 * r + 0.1192 * g + 0.9505 * b) / WHITE_Z);
+        lab[0] = 116 * fy - 16;
+        lab[1] = 500 * (fx - fy);
+        lab[2] = 200 * (fy - fz);
+    }
+
+    private static double f(double t) {
+        return t > 216.0 / 24389 ? Math.cbrt(t) : (24389.0 / 27 * t + 16) / 116;
+    }
+}
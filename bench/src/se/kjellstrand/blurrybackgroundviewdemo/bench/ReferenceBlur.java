@@ -0,0 +1,107 @@
+package se.kjellstrand.blurrybackgroundviewdemo.bench;
+
+import se.kjellstrand.blurrybackgroundviewdemo.PixelBuffer;
+
+/**
+ * A slow but exact gaussian blur, the blur ScriptIntrinsicBlur does: sigma =
+ * 0.4 * radius + 0.6, a kernel reaching three sigmas, edges clamped, each
+ * channel blurred separately in floating point and rounded once. Used to
+ * measure how far BoxBlur is from the intrinsic.
+ */
+public class ReferenceBlur {
+
+    /**
+     * How much two images differ, in levels (0 - 255) per channel.
+     */
+    public static class Result {
+        public double meanLevels;
+
+        public int maxLevels;
+    }
+
+    private ReferenceBlur() {
+    }
+
+    /**
+     * Blur the pixels in src into dst.
+     *
+     * @param src The pixels to blur.
+     * @param dst Where to write the blurred pixels, same size as src.
+     * @param radius The blur radius, same scale as for ScriptIntrinsicBlur.
+     */
+    public static void blur(PixelBuffer src, PixelBuffer dst, float radius) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        double sigma = 0.4 * radius + 0.6;
+        int kernelRadius = (int) Math.ceil(3 * sigma);
+        double[] kernel = new double[2 * kernelRadius + 1];
+        double sum = 0;
+        for (int i = -kernelRadius; i <= kernelRadius; i++) {
+            kernel[i + kernelRadius] = Math.exp(-i * i / (2 * sigma * sigma));
+            sum += kernel[i + kernelRadius];
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+
+        // Rows into rowPass, then columns into dst, four channels a pixel.
+        double[] rowPass = new double[width * height * 4];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int o = (y * width + x) * 4;
+                for (int k = -kernelRadius; k <= kernelRadius; k++) {
+                    int p = src.get(Math.min(Math.max(x + k, 0), width - 1), y);
+                    double weight = kernel[k + kernelRadius];
+                    for (int c = 0; c < 4; c++) {
+                        rowPass[o + c] += ((p >>> (c * 8)) & 0xff) * weight;
+                    }
+                }
+            }
+        }
+        int[] dstPixels = dst.getPixels();
+        double[] channels = new double[4];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                channels[0] = channels[1] = channels[2] = channels[3] = 0;
+                for (int k = -kernelRadius; k <= kernelRadius; k++) {
+                    int o = (Math.min(Math.max(y + k, 0), height - 1) * width + x) * 4;
+                    double weight = kernel[k + kernelRadius];
+                    for (int c = 0; c < 4; c++) {
+                        channels[c] += rowPass[o + c] * weight;
+                    }
+                }
+                int pixel = 0;
+                for (int c = 0; c < 4; c++) {
+                    pixel |= Math.min(255, (int) Math.round(channels[c])) << (c * 8);
+                }
+                dstPixels[dst.indexOf(x, y)] = pixel;
+            }
+        }
+    }
+
+    /**
+     * Compare the color channels of two images, the alpha of the opaque
+     * backgrounds is left out.
+     *
+     * @param expected The expected pixels.
+     * @param actual The pixels to compare, same size as expected.
+     * @return The mean and the largest difference of a channel.
+     */
+    public static Result compare(PixelBuffer expected, PixelBuffer actual) {
+        Result result = new Result();
+        long total = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.get(x, y);
+                int a = actual.get(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int difference = Math.abs(((e >>> shift) & 0xff) - ((a >>> shift) & 0xff));
+                    total += difference;
+                    result.maxLevels = Math.max(result.maxLevels, difference);
+                }
+            }
+        }
+        result.meanLevels = (double) total / (expected.getWidth() * expected.getHeight() * 3);
+        return result;
+    }
+}
@@ -0,0 +1,357 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of the background animations of a BlurredBackgroundLayout: the time
+ * it takes to capture the background, to prepare the blur keyframes with and
+ * without a cache hit, to render a background frame and to copy pixels in and
+ * out of the blur engine, the number of frames rendered and shown from the
+ * frame cache per animation and the number of blur contexts created, and the
+ * CPU cost of live blur. Recording does not lock, frames may be rendered on a
+ * worker thread.
+ */
+public class BackgroundAnimationMetrics {
+
+    /**
+     * Notified on the UI thread when a background animation ends.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a background animation has ended.
+         *
+         * @param metrics The metrics, including the animation that ended.
+         * @param animatingIn If the details view was animated in, else out.
+         * @param shownFrames Number of background frames shown during the
+         *            animation, rendered or from the frame cache.
+         * @param expectedFrames Number of frames the display could show during
+         *            the animation.
+         */
+        void onAnimationEnd(BackgroundAnimationMetrics metrics, boolean animatingIn, int shownFrames,
+                int expectedFrames);
+    }
+
+    private final Histogram captureNanos = new Histogram();
+
+    // Times to prepare the keyframes when they had to be blurred, and when
+    // they were up to date or loaded from a cache.
+    private final Histogram coldKeyframeNanos = new Histogram();
+
+    private final Histogram warmKeyframeNanos = new Histogram();
+
+    private final Histogram frameNanos = new Histogram();
+
+    private final Histogram copyNanos = new Histogram();
+
+    // Frames the display could show but no background frame was shown for,
+    // per animation.
+    private final Histogram missedFrames = new Histogram();
+
+    private final AtomicLong renderedFrames = new AtomicLong();
+
+    // Frames shown from the frame cache without rendering.
+    private final AtomicLong cachedFrames = new AtomicLong();
+
+    private final AtomicLong expectedFrames = new AtomicLong();
+
+    private final AtomicLong animations = new AtomicLong();
+
+    private final AtomicLong contextInitializations = new AtomicLong();
+
+    // CPU time of the live blur updates that found the background changed.
+    private final Histogram liveUpdateCpuNanos = new Histogram();
+
+    private final AtomicLong liveCpuNanos = new AtomicLong();
+
+    private final AtomicLong liveSkippedUpdates = new AtomicLong();
+
+    // Time that live blur was running.
+    private final AtomicLong liveNanos = new AtomicLong();
+
+    // Frames rendered and shown from the frame cache in the current
+    // animation.
+    private final AtomicInteger animationFrames = new AtomicInteger();
+
+    private final AtomicInteger animationCachedFrames = new AtomicInteger();
+
+    private volatile Listener listener = null;
+
+    /**
+     * @param listener Notified when a background animation ends, may be null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Record the time it took to capture the background.
+     *
+     * @param nanos The capture time.
+     */
+    public void recordCapture(long nanos) {
+        captureNanos.record(nanos);
+    }
+
+    /**
+     * Record the time it took to prepare the blur keyframes.
+     *
+     * @param nanos The time it took.
+     * @param cached If the keyframes were up to date or loaded from a cache,
+     *            else they were blurred.
+     */
+    public void recordKeyframes(long nanos, boolean cached) {
+        (cached ? warmKeyframeNanos : coldKeyframeNanos).record(nanos);
+    }
+
+    /**
+     * Record a rendered background frame.
+     *
+     * @param nanos The time it took to render the frame.
+     */
+    public void recordFrame(long nanos) {
+        frameNanos.record(nanos);
+        animationFrames.incrementAndGet();
+    }
+
+    /**
+     * Record a background frame shown from the frame cache, a frame that was
+     * rendered earlier and not rendered again.
+     */
+    public void recordCachedFrame() {
+        animationCachedFrames.incrementAndGet();
+    }
+
+    /**
+     * Record the time it took to copy pixels into and out of a blur engine
+     * for one blur.
+     *
+     * @param nanos The copy time.
+     */
+    public void recordCopy(long nanos) {
+        copyNanos.record(nanos);
+    }
+
+    /**
+     * Record the creation of a blur context, such as a RenderScript context.
+     */
+    public void recordContextInitialization() {
+        contextInitializations.incrementAndGet();
+    }
+
+    /**
+     * Record a live blur update.
+     *
+     * @param cpuNanos The CPU time of the update, on the thread it ran on.
+     * @param changed If the background had changed and was blurred again,
+     *            else the update was skipped after capturing.
+     */
+    public void recordLiveUpdate(long cpuNanos, boolean changed) {
+        if (changed) {
+            liveUpdateCpuNanos.record(cpuNanos);
+        } else {
+            liveSkippedUpdates.incrementAndGet();
+        }
+        liveCpuNanos.addAndGet(cpuNanos);
+    }
+
+    /**
+     * Record a period that live blur was running.
+     *
+     * @param nanos The length of the period.
+     */
+    public void recordLiveTime(long nanos) {
+        liveNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Start counting the frames of a background animation.
+     */
+    public void beginAnimation() {
+        animationFrames.set(0);
+        animationCachedFrames.set(0);
+    }
+
+    /**
+     * End a background animation and notify the listener, called on the UI
+     * thread.
+     *
+     * @param animatingIn If the details view was animated in, else out.
+     * @param durationMillis Duration of the animation.
+     * @param refreshRate Refresh rate of the display, in frames per second.
+     */
+    public void endAnimation(boolean animatingIn, long durationMillis, float refreshRate) {
+        int rendered = animationFrames.getAndSet(0);
+        int cached = animationCachedFrames.getAndSet(0);
+        int expected = Math.round(durationMillis * refreshRate / 1000);
+        renderedFrames.addAndGet(rendered);
+        cachedFrames.addAndGet(cached);
+        expectedFrames.addAndGet(expected);
+        missedFrames.record(Math.max(0, expected - rendered - cached));
+        animations.incrementAndGet();
+        Listener l = listener;
+        if (l != null) {
+            l.onAnimationEnd(this, animatingIn, rendered + cached, expected);
+        }
+    }
+
+    /**
+     * @return Times it took to capture the background, in nanoseconds.
+     */
+    public Histogram getCaptureNanos() {
+        return captureNanos;
+    }
+
+    /**
+     * @return Times it took to prepare the keyframes when they were blurred,
+     *         in nanoseconds.
+     */
+    public Histogram getColdKeyframeNanos() {
+        return coldKeyframeNanos;
+    }
+
+    /**
+     * @return Times it took to prepare the keyframes when they were up to date
+     *         or cached, in nanoseconds.
+     */
+    public Histogram getWarmKeyframeNanos() {
+        return warmKeyframeNanos;
+    }
+
+    /**
+     * @return Times it took to render a background frame, in nanoseconds.
+     */
+    public Histogram getFrameNanos() {
+        return frameNanos;
+    }
+
+    /**
+     * @return Times it took to copy pixels in and out of the blur engine per
+     *         blur, in nanoseconds.
+     */
+    public Histogram getCopyNanos() {
+        return copyNanos;
+    }
+
+    /**
+     * @return Frames missed per animation.
+     */
+    public Histogram getMissedFrames() {
+        return missedFrames;
+    }
+
+    /**
+     * @return Number of frames rendered in all animations.
+     */
+    public long getRenderedFrameCount() {
+        return renderedFrames.get();
+    }
+
+    /**
+     * @return Number of frames shown from the frame cache in all animations.
+     */
+    public long getCachedFrameCount() {
+        return cachedFrames.get();
+    }
+
+    /**
+     * @return Number of frames the display could show in all animations.
+     */
+    public long getExpectedFrameCount() {
+        return expectedFrames.get();
+    }
+
+    /**
+     * @return Number of animations.
+     */
+    public long getAnimationCount() {
+        return animations.get();
+    }
+
+    /**
+     * @return Number of blur contexts created.
+     */
+    public long getContextInitializationCount() {
+        return contextInitializations.get();
+    }
+
+    /**
+     * @return CPU times of the live blur updates that blurred the background
+     *         again, in nanoseconds.
+     */
+    public Histogram getLiveUpdateCpuNanos() {
+        return liveUpdateCpuNanos;
+    }
+
+    /**
+     * @return Number of live blur updates skipped as nothing had changed.
+     */
+    public long getLiveSkippedUpdateCount() {
+        return liveSkippedUpdates.get();
+    }
+
+    /**
+     * @return CPU time spent on live blur per second that it was running, in
+     *         nanoseconds. 0 if live blur has not run.
+     */
+    public long getLiveCpuNanosPerSecond() {
+        long nanos = liveNanos.get();
+        return nanos > 0 ? (long) (liveCpuNanos.get() * 1e9 / nanos) : 0;
+    }
+
+    /**
+     * Clear all metrics.
+     */
+    public void reset() {
+        captureNanos.reset();
+        coldKeyframeNanos.reset();
+        warmKeyframeNanos.reset();
+        frameNanos.reset();
+        copyNanos.reset();
+        missedFrames.reset();
+        renderedFrames.set(0);
+        cachedFrames.set(0);
+        expectedFrames.set(0);
+        animations.set(0);
+        contextInitializations.set(0);
+        liveUpdateCpuNanos.reset();
+        liveCpuNanos.set(0);
+        liveSkippedUpdates.set(0);
+        liveNanos.set(0);
+    }
+
+    /**
+     * Write the metrics as key=value lines, times in microseconds.
+     *
+     * @param writer Where to write the metrics.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("animations=" + animations.get());
+        writer.println("frames.rendered=" + renderedFrames.get());
+        writer.println("frames.cached=" + cachedFrames.get());
+        writer.println("frames.expected=" + expectedFrames.get());
+        writer.println("context.initializations=" + contextInitializations.get());
+        dumpHistogram(writer, "capture.us", captureNanos, 1000);
+        dumpHistogram(writer, "keyframes.cold.us", coldKeyframeNanos, 1000);
+        dumpHistogram(writer, "keyframes.warm.us", warmKeyframeNanos, 1000);
+        dumpHistogram(writer, "frame.us", frameNanos, 1000);
+        dumpHistogram(writer, "copy.us", copyNanos, 1000);
+        dumpHistogram(writer, "frames.missed", missedFrames, 1);
+        dumpHistogram(writer, "live.update.cpu.us", liveUpdateCpuNanos, 1000);
+        writer.println("live.skipped=" + liveSkippedUpdates.get());
+        writer.println(String.format(Locale.US, "live.cpu.ms.per.s=%.2f", getLiveCpuNanosPerSecond() / 1e6));
+        writer.flush();
+    }
+
+    private static void dumpHistogram(PrintWriter writer, String name, Histogram histogram, double divisor) {
+        writer.println(name + ".count=" + histogram.getCount());
+        writer.println(String.format(Locale.US, "%s.mean=%.1f", name, histogram.getMean() / divisor));
+        writer.println(String.format(Locale.US, "%s.p50=%.1f", name, histogram.getPercentile(50) / divisor));
+        writer.println(String.format(Locale.US, "%s.p90=%.1f", name, histogram.getPercentile(90) / divisor));
+        writer.println(String.format(Locale.US, "%s.p99=%.1f", name, histogram.getPercentile(99) / divisor));
+        writer.println(String.format(Locale.US, "%s.max=%.1f", name, histogram.getMax() / divisor));
+    }
+}
@@ -0,0 +1,328 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.widget.ImageView;
+
+/**
+ * Renders background frames on a worker thread so that slow blurs do not stall
+ * the UI thread. Frames are requested from the UI thread and only the newest
+ * request is rendered, older requests that were not started yet are skipped.
+ * Frames are rendered into a back buffer and swapped into the ImageView on the
+ * UI thread once completed, a completed frame that is replaced by a newer one
+ * before it was shown is dropped.
+ */
+public class BackgroundBlurRenderer {
+
+    /**
+     * Renders one frame of the background, called on the worker thread.
+     */
+    public interface FrameRenderer {
+
+        /**
+         * Render a frame.
+         *
+         * @param outputBitmap The bitmap to render the frame to.
+         * @param scale The scale of the background.
+         * @param blurRadius The blur radius of the background.
+         * @param darken The darken fraction of the background, 1 leaves it as
+         *            it is.
+         */
+        void renderFrame(Bitmap outputBitmap, float scale, float blurRadius, float darken);
+    }
+
+    // Pool the frame buffers are borrowed from.
+    private final BitmapPool bitmapPool;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final HandlerThread workerThread;
+
+    private final Handler workerHandler;
+
+    // Guards all fields below.
+    private final Object lock = new Object();
+
+    private FrameRenderer frameRenderer = null;
+
+    private ImageView target = null;
+
+    // The buffer shown by target.
+    private Bitmap frontBuffer = null;
+
+    // The buffer frames are rendered to.
+    private Bitmap backBuffer = null;
+
+    // Drawables of the buffers, swapped with them, so that showing a frame
+    // does not create a drawable.
+    private BitmapDrawable frontDrawable = null;
+
+    private BitmapDrawable backDrawable = null;
+
+    // If the back buffer holds a completed frame that has not been shown yet.
+    private boolean backBufferReady = false;
+
+    // If frames are accepted, between begin and end.
+    private boolean active = false;
+
+    // If a frame is being rendered on the worker thread.
+    private boolean rendering = false;
+
+    // If a render of the requested frame has been posted to the worker.
+    private boolean renderQueued = false;
+
+    private boolean hasRequest = false;
+
+    private float requestedScale;
+
+    private float requestedBlurRadius;
+
+    private float requestedDarken;
+
+    private long requestedFrames = 0;
+
+    private long skippedFrames = 0;
+
+    private long renderedFrames = 0;
+
+    private long droppedFrames = 0;
+
+    private long presentedFrames = 0;
+
+    // Renders the newest requested frame on the worker thread.
+    private final Runnable renderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            FrameRenderer renderer;
+            Bitmap buffer;
+            float scale;
+            float blurRadius;
+            float darken;
+            synchronized (lock) {
+                renderQueued = false;
+                if (!active || !hasRequest) {
+                    return;
+                }
+                hasRequest = false;
+                scale = requestedScale;
+                blurRadius = requestedBlurRadius;
+                darken = requestedDarken;
+                if (backBufferReady) {
+                    // The last frame was never shown, render over it.
+                    droppedFrames++;
+                    backBufferReady = false;
+                }
+                rendering = true;
+                renderer = frameRenderer;
+                buffer = backBuffer;
+            }
+            try {
+                renderer.renderFrame(buffer, scale, blurRadius, darken);
+            } finally {
+                synchronized (lock) {
+                    rendering = false;
+                    renderedFrames++;
+                    backBufferReady = true;
+                    lock.notifyAll();
+                }
+            }
+            mainHandler.post(presentRunnable);
+        }
+    };
+
+    // Swaps a completed frame into the target on the UI thread.
+    private final Runnable presentRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ImageView view;
+            BitmapDrawable frame;
+            synchronized (lock) {
+                if (!active || !backBufferReady) {
+                    return;
+                }
+                Bitmap buffer = backBuffer;
+                backBuffer = frontBuffer;
+                frontBuffer = buffer;
+                frame = backDrawable;
+                backDrawable = frontDrawable;
+                frontDrawable = frame;
+                backBufferReady = false;
+                presentedFrames++;
+                view = target;
+            }
+            view.setImageDrawable(frame);
+        }
+    };
+
+    /**
+     * Create a renderer and start its worker thread.
+     *
+     * @param bitmapPool Pool to borrow the frame buffers from.
+     */
+    public BackgroundBlurRenderer(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+        workerThread = new HandlerThread(BackgroundBlurRenderer.class.getSimpleName(), Process.THREAD_PRIORITY_DISPLAY);
+        workerThread.start();
+        workerHandler = new Handler(workerThread.getLooper());
+    }
+
+    /**
+     * Start accepting frame requests, called from the UI thread.
+     *
+     * @param target The view to show the rendered frames in.
+     * @param width Width of the frames.
+     * @param height Height of the frames.
+     * @param frameRenderer Renders the frames on the worker thread.
+     */
+    public void begin(ImageView target, int width, int height, FrameRenderer frameRenderer) {
+        end();
+        synchronized (lock) {
+            this.target = target;
+            this.frameRenderer = frameRenderer;
+            frontBuffer = bitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+            backBuffer = bitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+            frontDrawable = new BitmapDrawable(target.getResources(), frontBuffer);
+            backDrawable = new BitmapDrawable(target.getResources(), backBuffer);
+            active = true;
+        }
+    }
+
+    /**
+     * Request a frame, replaces any earlier request that has not started
+     * rendering yet. Called from the UI thread.
+     *
+     * @param scale The scale of the background.
+     * @param blurRadius The blur radius of the background.
+     * @param darken The darken fraction of the background.
+     */
+    public void requestFrame(float scale, float blurRadius, float darken) {
+        synchronized (lock) {
+            if (!active) {
+                return;
+            }
+            requestedFrames++;
+            if (hasRequest) {
+                skippedFrames++;
+            }
+            hasRequest = true;
+            requestedScale = scale;
+            requestedBlurRadius = blurRadius;
+            requestedDarken = darken;
+            if (!renderQueued) {
+                renderQueued = true;
+                workerHandler.post(renderRunnable);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting frame requests and return the frame buffers to the pool.
+     * Waits for a frame that is being rendered to complete, the target must
+     * not show a frame buffer any longer when this is called.
+     */
+    public void end() {
+        synchronized (lock) {
+            active = false;
+            hasRequest = false;
+            boolean interrupted = false;
+            while (rendering) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            bitmapPool.put(frontBuffer);
+            bitmapPool.put(backBuffer);
+            frontBuffer = null;
+            backBuffer = null;
+            frontDrawable = null;
+            backDrawable = null;
+            backBufferReady = false;
+            target = null;
+            frameRenderer = null;
+        }
+    }
+
+    /**
+     * End rendering and stop the worker thread, the renderer can not be used
+     * after this.
+     */
+    public void quit() {
+        end();
+        workerThread.quit();
+    }
+
+    /**
+     * @return If no frame is requested, being rendered or waiting to be shown,
+     *         so the frame renderer does not read its input.
+     */
+    public boolean isIdle() {
+        synchronized (lock) {
+            return !hasRequest && !rendering && !backBufferReady;
+        }
+    }
+
+    /**
+     * @return If frames are currently accepted.
+     */
+    public boolean isActive() {
+        synchronized (lock) {
+            return active;
+        }
+    }
+
+    /**
+     * @return Number of frames requested.
+     */
+    public long getRequestedFrameCount() {
+        synchronized (lock) {
+            return requestedFrames;
+        }
+    }
+
+    /**
+     * @return Number of requested frames that were replaced by a newer request
+     *         before they were rendered.
+     */
+    public long getSkippedFrameCount() {
+        synchronized (lock) {
+            return skippedFrames;
+        }
+    }
+
+    /**
+     * @return Number of frames rendered.
+     */
+    public long getRenderedFrameCount() {
+        synchronized (lock) {
+            return renderedFrames;
+        }
+    }
+
+    /**
+     * @return Number of rendered frames that were replaced by a newer frame
+     *         before they were shown.
+     */
+    public long getDroppedFrameCount() {
+        synchronized (lock) {
+            return droppedFrames;
+        }
+    }
+
+    /**
+     * @return Number of frames shown in the target.
+     */
+    public long getPresentedFrameCount() {
+        synchronized (lock) {
+            return presentedFrames;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.view.View;
+
+/**
+ * Keeps a downscaled snapshot of a view between captures. Changes to the view
+ * reported with invalidate are collected in a dirty rectangle, and the next
+ * capture only draws that part of the view again. If nothing has changed since
+ * the last capture the snapshot is returned as it is.
+ */
+public class BackgroundCapture {
+
+    // Factor the view is scaled down by when captured.
+    private final float scaleFactor;
+
+    // Pool the snapshot bitmap is borrowed from.
+    private final BitmapPool bitmapPool;
+
+    private final Canvas canvas = new Canvas();
+
+    private final Matrix matrix = new Matrix();
+
+    // The changed part of the view since the last capture, in view
+    // coordinates.
+    private final Rect dirtyRect = new Rect();
+
+    // If the whole view has to be drawn on the next capture.
+    private boolean fullyDirty = true;
+
+    private Bitmap snapshot = null;
+
+    /**
+     * Create a capture.
+     *
+     * @param scaleFactor Factor the view is scaled down by when captured.
+     * @param bitmapPool Pool to borrow the snapshot bitmap from.
+     */
+    public BackgroundCapture(float scaleFactor, BitmapPool bitmapPool) {
+        this.scaleFactor = scaleFactor;
+        this.bitmapPool = bitmapPool;
+    }
+
+    /**
+     * Mark a part of the view as changed.
+     *
+     * @param dirty The changed part of the view in view coordinates, or null
+     *            if the whole view changed.
+     */
+    public void invalidate(Rect dirty) {
+        if (dirty == null) {
+            fullyDirty = true;
+        } else {
+            dirtyRect.union(dirty);
+        }
+    }
+
+    /**
+     * Mark the whole view as changed.
+     */
+    public void invalidateAll() {
+        fullyDirty = true;
+    }
+
+    /**
+     * Capture the view, only the parts of it that changed since the last
+     * capture are drawn.
+     *
+     * @param view The view to capture.
+     * @param width Width of the snapshot.
+     * @param height Height of the snapshot.
+     * @param changedRect Set to the part of the snapshot that changed, in
+     *            snapshot coordinates. Empty if nothing changed.
+     * @return The snapshot, owned by the capture and reused by the next
+     *         capture of the same size.
+     */
+    public Bitmap capture(View view, int width, int height, Rect changedRect) {
+        if (snapshot == null || snapshot.getWidth() != width || snapshot.getHeight() != height) {
+            bitmapPool.put(snapshot);
+            snapshot = bitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+            canvas.setBitmap(snapshot);
+            fullyDirty = true;
+        }
+
+        if (fullyDirty) {
+            changedRect.set(0, 0, width, height);
+        } else if (dirtyRect.isEmpty()) {
+            changedRect.setEmpty();
+        } else {
+            // Round outwards so that partly covered pixels are drawn again.
+            changedRect.set((int) Math.floor(dirtyRect.left * scaleFactor),
+                    (int) Math.floor(dirtyRect.top * scaleFactor), (int) Math.ceil(dirtyRect.right * scaleFactor),
+                    (int) Math.ceil(dirtyRect.bottom * scaleFactor));
+            if (!changedRect.intersect(0, 0, width, height)) {
+                changedRect.setEmpty();
+            }
+        }
+        fullyDirty = false;
+        dirtyRect.setEmpty();
+
+        if (!changedRect.isEmpty()) {
+            canvas.save();
+            canvas.clipRect(changedRect);
+            canvas.drawColor(0xff000000);
+            matrix.setScale(scaleFactor, scaleFactor);
+            canvas.concat(matrix);
+            view.draw(canvas);
+            canvas.restore();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Return the snapshot to the pool, the next capture will draw the whole
+     * view.
+     */
+    public void release() {
+        canvas.setBitmap(null);
+        bitmapPool.put(snapshot);
+        snapshot = null;
+        fullyDirty = true;
+    }
+}
@@ -0,0 +1,62 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+/**
+ * The constants and the per-fraction math of the background effect of
+ * BlurredBackgroundLayout: how much the background is scaled down before
+ * blurring, and how much it is scaled, blurred and darkened at a fraction of
+ * the in animation. Pure Java, so that the bench renders the same effect as
+ * the layout.
+ */
+public class BackgroundEffect {
+
+    /**
+     * Factor that the background is scaled down by before applying blur and
+     * other effects, the lower this value is the faster the effects can be
+     * applied.
+     */
+    public static final float SCALE_DOWN_FACTOR = 0.15f;
+
+    /**
+     * Scale of the background when the details view is shown, it scales down
+     * / moves away from the user while animating in.
+     */
+    public static final float MIN_SCALE = 0.95f;
+
+    /**
+     * Blur radius of the background when the details view is shown.
+     */
+    public static final float MAX_BLUR_RADIUS = 16f;
+
+    /**
+     * Fraction that the background fades towards black while animating in.
+     */
+    public static final float DARKEN_BY_FRACTION = 0.8f;
+
+    private BackgroundEffect() {
+    }
+
+    /**
+     * @param fraction The fraction of the in animation, 0 hidden and 1 shown.
+     * @return The scale of the background at fraction.
+     */
+    public static float getScale(float fraction) {
+        return (1 - MIN_SCALE) * (1 - fraction) + MIN_SCALE;
+    }
+
+    /**
+     * @param fraction The fraction of the in animation, 0 hidden and 1 shown.
+     * @return The blur radius of the background at fraction.
+     */
+    public static float getBlurRadius(float fraction) {
+        return MAX_BLUR_RADIUS * fraction;
+    }
+
+    /**
+     * @param fraction The fraction of the in animation, 0 hidden and 1 shown.
+     * @return The darken fraction of the background at fraction, 1 leaves the
+     *         background as it is.
+     */
+    public static float getDarken(float fraction) {
+        return 1f + (DARKEN_BY_FRACTION - 1f) * fraction;
+    }
+}
@@ -0,0 +1,144 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+
+/**
+ * The background frames of one opening of the details view, rendered at a
+ * fixed number of steps of the animation fraction. The background of a
+ * fraction only depends on the fraction, so a frame rendered while opening
+ * is shown again while closing, and when an animation is reversed half way,
+ * instead of being rendered again. The bitmaps and their drawables are kept
+ * between openings of the same size, so showing a frame allocates nothing.
+ */
+public class BackgroundFrameCache {
+
+    // Number of steps between fraction 0 and 1.
+    private final int steps;
+
+    // Pool the frame bitmaps are borrowed from.
+    private final BitmapPool bitmapPool;
+
+    private final Bitmap[] frames;
+
+    // Drawables of the frames, created when first shown.
+    private final BitmapDrawable[] drawables;
+
+    private final boolean[] rendered;
+
+    /**
+     * Create a cache.
+     *
+     * @param steps Number of steps between fraction 0 and 1, frames are
+     *            rendered for steps + 1 fractions.
+     * @param bitmapPool Pool to borrow the frame bitmaps from.
+     */
+    public BackgroundFrameCache(int steps, BitmapPool bitmapPool) {
+        this.steps = steps;
+        this.bitmapPool = bitmapPool;
+        frames = new Bitmap[steps + 1];
+        drawables = new BitmapDrawable[steps + 1];
+        rendered = new boolean[steps + 1];
+    }
+
+    /**
+     * @return Number of steps between fraction 0 and 1.
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * @param fraction An animation fraction, 0 - 1.
+     * @return The nearest step.
+     */
+    public int getStep(float fraction) {
+        return Math.min(steps, Math.max(0, Math.round(fraction * steps)));
+    }
+
+    /**
+     * @param step A step.
+     * @return The animation fraction the frame of step is rendered at.
+     */
+    public float getFraction(int step) {
+        return (float) step / steps;
+    }
+
+    /**
+     * @param step A step.
+     * @return If the frame of step has been rendered.
+     */
+    public boolean isRendered(int step) {
+        return rendered[step];
+    }
+
+    /**
+     * Mark the frame of a step as rendered.
+     *
+     * @param step The step.
+     */
+    public void setRendered(int step) {
+        rendered[step] = true;
+    }
+
+    /**
+     * Get the bitmap of a step, to render it or to show it once rendered.
+     *
+     * @param step The step.
+     * @param width Width of the frames.
+     * @param height Height of the frames.
+     * @return The bitmap of the step, borrowed from the pool if needed.
+     */
+    public Bitmap getBitmap(int step, int width, int height) {
+        Bitmap frame = frames[step];
+        if (frame == null || frame.getWidth() != width || frame.getHeight() != height) {
+            bitmapPool.put(frame);
+            frame = bitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+            frames[step] = frame;
+            drawables[step] = null;
+            rendered[step] = false;
+        }
+        return frame;
+    }
+
+    /**
+     * Get a drawable of the bitmap of a step, the same drawable as long as
+     * the bitmap is the same.
+     *
+     * @param step The step.
+     * @param width Width of the frames.
+     * @param height Height of the frames.
+     * @param resources Resources to create the drawable with.
+     * @return The drawable of the step.
+     */
+    public BitmapDrawable getDrawable(int step, int width, int height, Resources resources) {
+        Bitmap frame = getBitmap(step, width, height);
+        if (drawables[step] == null) {
+            drawables[step] = new BitmapDrawable(resources, frame);
+        }
+        return drawables[step];
+    }
+
+    /**
+     * Mark all frames as not rendered, when the background they were rendered
+     * from has changed. The bitmaps are kept for rendering them again.
+     */
+    public void invalidate() {
+        for (int i = 0; i < rendered.length; i++) {
+            rendered[i] = false;
+        }
+    }
+
+    /**
+     * Return the frame bitmaps to the pool, no frame is rendered after this.
+     */
+    public void release() {
+        for (int i = 0; i < frames.length; i++) {
+            bitmapPool.put(frames[i]);
+            frames[i] = null;
+            drawables[i] = null;
+            rendered[i] = false;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import android.graphics.Bitmap;
+
+/**
+ * Copies pixels between Bitmaps and PixelBuffers, the only place the pure Java
+ * pixel stages meet Android.
+ */
+public class BitmapPixels {
+
+    private BitmapPixels() {
+    }
+
+    /**
+     * Copy the pixels of a bitmap into a buffer of the same size.
+     *
+     * @param bitmap The bitmap to read.
+     * @param buffer The buffer to write to.
+     */
+    public static void read(Bitmap bitmap, PixelBuffer buffer) {
+        read(bitmap, 0, 0, buffer);
+    }
+
+    /**
+     * Copy a part of a bitmap into a buffer, the part is the size of the
+     * buffer.
+     *
+     * @param bitmap The bitmap to read.
+     * @param x Left edge of the part.
+     * @param y Top edge of the part.
+     * @param buffer The buffer to write to.
+     */
+    public static void read(Bitmap bitmap, int x, int y, PixelBuffer buffer) {
+        bitmap.getPixels(buffer.getPixels(), buffer.getOffset(), buffer.getStride(), x, y, buffer.getWidth(),
+                buffer.getHeight());
+    }
+
+    /**
+     * Copy the pixels of a buffer into a bitmap of the same size.
+     *
+     * @param buffer The buffer to read.
+     * @param bitmap The mutable bitmap to write to.
+     */
+    public static void write(PixelBuffer buffer, Bitmap bitmap) {
+        write(buffer, bitmap, 0, 0);
+    }
+
+    /**
+     * Copy the pixels of a buffer into a part of a bitmap.
+     *
+     * @param buffer The buffer to read.
+     * @param bitmap The mutable bitmap to write to.
+     * @param x Left edge of the part to write.
+     * @param y Top edge of the part to write.
+     */
+    public static void write(PixelBuffer buffer, Bitmap bitmap, int x, int y) {
+        bitmap.setPixels(buffer.getPixels(), buffer.getOffset(), buffer.getStride(), x, y, buffer.getWidth(),
+                buffer.getHeight());
+    }
+}
@@ -0,0 +1,108 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+
+/**
+ * A bounded pool of mutable bitmaps that can be reused instead of allocating
+ * new ones, bitmaps are matched on width, height and config. When the pooled
+ * bitmaps take up more memory than the pool is allowed to hold the least
+ * recently returned bitmaps are recycled.
+ */
+public class BitmapPool {
+
+    // Part of the max heap the shared pool may use.
+    private static final int SHARED_POOL_HEAP_DIVISOR = 16;
+
+    private static BitmapPool sharedPool = null;
+
+    // Max number of bytes of pooled bitmaps.
+    private final long maxBytes;
+
+    // The pooled bitmaps, least recently returned first.
+    private final ArrayList<Bitmap> pooled = new ArrayList<Bitmap>();
+
+    private long pooledBytes = 0;
+
+    /**
+     * Create a pool.
+     *
+     * @param maxBytes Max number of bytes the pooled bitmaps may use.
+     */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return A pool shared by everything in the process that does not need a
+     *         pool of its own.
+     */
+    public static synchronized BitmapPool getSharedPool() {
+        if (sharedPool == null) {
+            sharedPool = new BitmapPool(Runtime.getRuntime().maxMemory() / SHARED_POOL_HEAP_DIVISOR);
+        }
+        return sharedPool;
+    }
+
+    /**
+     * Get a bitmap from the pool, or a new one if there is no matching bitmap
+     * in the pool. The content of a pooled bitmap is undefined.
+     *
+     * @param width Width of the bitmap.
+     * @param height Height of the bitmap.
+     * @param config Config of the bitmap.
+     * @return A mutable bitmap.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        for (int i = pooled.size() - 1; i >= 0; i--) {
+            Bitmap bitmap = pooled.get(i);
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+                pooled.remove(i);
+                pooledBytes -= bitmap.getByteCount();
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Return a bitmap to the pool, the bitmap may not be used after this.
+     *
+     * @param bitmap The bitmap to return, ignored if null.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getByteCount() > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        pooled.add(bitmap);
+        pooledBytes += bitmap.getByteCount();
+        while (pooledBytes > maxBytes) {
+            Bitmap evicted = pooled.remove(0);
+            pooledBytes -= evicted.getByteCount();
+            evicted.recycle();
+        }
+    }
+
+    /**
+     * Recycle all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < pooled.size(); i++) {
+            pooled.get(i).recycle();
+        }
+        pooled.clear();
+        pooledBytes = 0;
+    }
+
+    /**
+     * @return Number of bytes used by the pooled bitmaps.
+     */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+}
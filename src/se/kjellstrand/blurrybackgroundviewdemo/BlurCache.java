@@ -0,0 +1,358 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * A two level cache of blurred bitmaps, kept across openings of the details
+ * view, configuration changes and process restarts. Blurred pixels are stored
+ * as raw ARGB_8888 files in a size capped directory, the least recently used
+ * files are deleted when it grows too large. The files are memory mapped when
+ * stored or first loaded, and the mapped files are kept in a memory level of
+ * their own, so loading a blurred bitmap is a copy from the mapped file.
+ * Files are written on a background thread of the cache, so storing costs
+ * the caller only a copy of the pixels.
+ *
+ * Entries are keyed by a hash of the pixels that were blurred and the blur
+ * parameters. Blurs of the same pixels by different blur engines are treated
+ * as the same, they only differ by a level or so.
+ */
+public class BlurCache {
+    private static final String LOG_TAG = BlurCache.class.getCanonicalName();
+
+    // Max size of the files of the shared cache.
+    private static final long SHARED_CACHE_MAX_DISK_BYTES = 16 * 1024 * 1024;
+
+    // Max size of the mapped files kept by the shared cache.
+    private static final long SHARED_CACHE_MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+
+    private static final String SHARED_CACHE_DIRECTORY = "blur";
+
+    private static final String FILE_SUFFIX = ".argb";
+
+    // "BLUR", followed by the version, width and height.
+    private static final int FILE_MAGIC = 0x424c5552;
+
+    private static final int FILE_VERSION = 1;
+
+    private static final int HEADER_BYTES = 16;
+
+    private static BlurCache sharedCache = null;
+
+    private final File directory;
+
+    private final long maxDiskBytes;
+
+    private final long maxMemoryBytes;
+
+    // The pixels of recently used entries, mapped from their files, least
+    // recently used first.
+    private final LinkedHashMap<Long, ByteBuffer> memoryCache = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true);
+
+    private long memoryBytes = 0;
+
+    // Holds the pixels of a bitmap while it is hashed.
+    private ByteBuffer hashBuffer = ByteBuffer.allocate(0);
+
+    private final CRC32 crc = new CRC32();
+
+    private final Adler32 adler = new Adler32();
+
+    private final HandlerThread writeThread;
+
+    private final Handler writeHandler;
+
+    /**
+     * Create a cache and start its write thread.
+     *
+     * @param directory The directory to store the blurred bitmaps in,
+     *            created if needed.
+     * @param maxDiskBytes Max size of the files in the directory.
+     * @param maxMemoryBytes Max size of the mapped files kept in memory.
+     */
+    public BlurCache(File directory, long maxDiskBytes, long maxMemoryBytes) {
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+        writeThread = new HandlerThread(BlurCache.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+        writeThread.start();
+        writeHandler = new Handler(writeThread.getLooper());
+    }
+
+    /**
+     * @param context A context, used to find the cache directory of the app.
+     * @return A cache shared by everything in the process, storing its files
+     *         in the cache directory of the app.
+     */
+    public static synchronized BlurCache getSharedCache(Context context) {
+        if (sharedCache == null) {
+            sharedCache = new BlurCache(new File(context.getApplicationContext().getCacheDir(), SHARED_CACHE_DIRECTORY),
+                    SHARED_CACHE_MAX_DISK_BYTES, SHARED_CACHE_MAX_MEMORY_BYTES);
+        }
+        return sharedCache;
+    }
+
+    /**
+     * Hash the pixels of a bitmap.
+     *
+     * @param bitmap An ARGB_8888 bitmap.
+     * @return A hash of the size and pixels of the bitmap.
+     */
+    public synchronized long getContentHash(Bitmap bitmap) {
+        int byteCount = bitmap.getByteCount();
+        if (hashBuffer.capacity() < byteCount) {
+            hashBuffer = ByteBuffer.allocate(byteCount);
+        }
+        hashBuffer.clear();
+        bitmap.copyPixelsToBuffer(hashBuffer);
+        crc.reset();
+        crc.update(hashBuffer.array(), 0, byteCount);
+        adler.reset();
+        adler.update(hashBuffer.array(), 0, byteCount);
+        long hash = (crc.getValue() << 32) | adler.getValue();
+        hash = mix(hash, bitmap.getWidth());
+        return mix(hash, bitmap.getHeight());
+    }
+
+    /**
+     * Get the key of a blur.
+     *
+     * @param contentHash The hash of the blurred pixels, from getContentHash.
+     * @param blurRadius The blur radius.
+     * @return The key of the blurred pixels.
+     */
+    public static long getKey(long contentHash, float blurRadius) {
+        return mix(contentHash, Float.floatToIntBits(blurRadius));
+    }
+
+    /**
+     * @param key The key of a blur.
+     * @return If the blur is cached, in memory or on disk.
+     */
+    public synchronized boolean contains(long key) {
+        return memoryCache.containsKey(Long.valueOf(key)) || getFile(key).isFile();
+    }
+
+    /**
+     * Copy cached blurred pixels into a bitmap.
+     *
+     * @param key The key of the blur.
+     * @param outputBitmap The ARGB_8888 bitmap to copy the pixels to, of the
+     *            size that was blurred.
+     * @return If the blur was cached, else outputBitmap is left as it is.
+     */
+    public synchronized boolean load(long key, Bitmap outputBitmap) {
+        Long memoryKey = Long.valueOf(key);
+        File file = getFile(key);
+        ByteBuffer pixels = memoryCache.get(memoryKey);
+        if (pixels == null) {
+            if (!file.isFile()) {
+                return false;
+            }
+            pixels = map(file, outputBitmap.getWidth(), outputBitmap.getHeight());
+            if (pixels == null) {
+                return false;
+            }
+            putInMemory(memoryKey, pixels);
+        }
+        if (pixels.capacity() != outputBitmap.getByteCount()) {
+            return false;
+        }
+        // Keep the most recently used files when trimming the directory.
+        file.setLastModified(System.currentTimeMillis());
+        outputBitmap.copyPixelsFromBuffer(pixels.duplicate());
+        return true;
+    }
+
+    /**
+     * Store blurred pixels. The pixels are copied and written to the file on
+     * the write thread, until then the blur is not cached. Failures to write
+     * the file are logged and otherwise ignored.
+     *
+     * @param key The key of the blur.
+     * @param bitmap The blurred ARGB_8888 bitmap, may be changed once this
+     *            returns.
+     */
+    public void store(final long key, Bitmap bitmap) {
+        final ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(pixels);
+        pixels.rewind();
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        writeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                write(key, pixels, width, height);
+            }
+        });
+    }
+
+    /**
+     * Remove all entries, from memory and disk.
+     */
+    public synchronized void clear() {
+        memoryCache.clear();
+        memoryBytes = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    // Write the pixels of a blur to its file and keep the mapped file in
+    // memory, called on the write thread.
+    private void write(long key, ByteBuffer pixels, int width, int height) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(LOG_TAG, "Failed to create the blur cache directory " + directory);
+            return;
+        }
+        File file = getFile(key);
+        File tmpFile = new File(directory, Long.toHexString(key) + ".tmp");
+        int byteCount = pixels.remaining();
+        MappedByteBuffer buffer;
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(tmpFile, "rw");
+            try {
+                randomAccessFile.setLength(HEADER_BYTES + byteCount);
+                buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + byteCount);
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to write to the blur cache.", e);
+            tmpFile.delete();
+            return;
+        }
+        buffer.putInt(FILE_MAGIC);
+        buffer.putInt(FILE_VERSION);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.put(pixels);
+        // Renamed into place once complete so that a partly written file is
+        // never loaded.
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            return;
+        }
+        buffer.position(HEADER_BYTES);
+        synchronized (this) {
+            putInMemory(Long.valueOf(key), buffer.slice());
+            trimDisk();
+        }
+    }
+
+    private File getFile(long key) {
+        return new File(directory, Long.toHexString(key) + FILE_SUFFIX);
+    }
+
+    // Map the pixels of a file, null if the file is not a blur of the given
+    // size.
+    private ByteBuffer map(File file, int width, int height) {
+        long byteCount = (long) width * height * 4;
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                if (randomAccessFile.length() != HEADER_BYTES + byteCount) {
+                    return null;
+                }
+                MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        HEADER_BYTES + byteCount);
+                if (buffer.getInt() != FILE_MAGIC || buffer.getInt() != FILE_VERSION || buffer.getInt() != width
+                        || buffer.getInt() != height) {
+                    return null;
+                }
+                return buffer.slice();
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read from the blur cache.", e);
+            return null;
+        }
+    }
+
+    private void putInMemory(Long key, ByteBuffer pixels) {
+        ByteBuffer old = memoryCache.put(key, pixels);
+        if (old != null) {
+            memoryBytes -= old.capacity();
+        }
+        memoryBytes += pixels.capacity();
+        Iterator<ByteBuffer> iterator = memoryCache.values().iterator();
+        while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+            memoryBytes -= iterator.next().capacity();
+            iterator.remove();
+        }
+    }
+
+    // Delete the least recently used files until the directory is within its
+    // size.
+    private void trimDisk() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long diskBytes = 0;
+        for (File file : files) {
+            diskBytes += file.length();
+        }
+        if (diskBytes <= maxDiskBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length && diskBytes > maxDiskBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                diskBytes -= length;
+                String name = files[i].getName();
+                if (name.endsWith(FILE_SUFFIX)) {
+                    removeFromMemory(name.substring(0, name.length() - FILE_SUFFIX.length()));
+                }
+            }
+        }
+    }
+
+    private void removeFromMemory(String hexKey) {
+        for (Iterator<Map.Entry<Long, ByteBuffer>> iterator = memoryCache.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry<Long, ByteBuffer> entry = iterator.next();
+            if (Long.toHexString(entry.getKey().longValue()).equals(hexKey)) {
+                memoryBytes -= entry.getValue().capacity();
+                iterator.remove();
+            }
+        }
+    }
+
+    // Mix a value into a hash, FNV-1a over the bytes of the value.
+    private static long mix(long hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,49 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+/**
+ * A blur implementation that BlurredBackgroundLayout can use to blur its
+ * background. Implementations are expected to keep any buffers they need
+ * between calls so that run can be called once per animation frame without
+ * allocating.
+ */
+public interface BlurEngine {
+
+    /**
+     * Prepare the engine for blurring bitmaps of the same size as the given
+     * bitmap. Cheap to call if the engine is already prepared for that size.
+     * Engines stay prepared for the last few sizes, a BlurLadder initializes
+     * one size per level. May throw RSRuntimeException if the engine uses
+     * RenderScript.
+     *
+     * @param context A context, used by engines that need one.
+     * @param inputBitmap A bitmap of the size that will be blurred.
+     */
+    void init(Context context, Bitmap inputBitmap);
+
+    /**
+     * Blur inputBitmap into outputBitmap, both bitmaps must be of one of the
+     * last sizes the engine was initialized with.
+     *
+     * @param outputBitmap The bitmap to write the blurred pixels to.
+     * @param inputBitmap The bitmap to blur.
+     * @param blurStrength The blur radius, same scale as for
+     *            ScriptIntrinsicBlur (0 - 25).
+     */
+    void run(Bitmap outputBitmap, Bitmap inputBitmap, float blurStrength);
+
+    /**
+     * Set the metrics the engine records the time it spends copying pixels
+     * in and out of its buffers to, and the creation of blur contexts.
+     *
+     * @param metrics The metrics to record to, or null to not record.
+     */
+    void setMetrics(BackgroundAnimationMetrics metrics);
+
+    /**
+     * Release any resources held by the engine.
+     */
+    void release();
+}
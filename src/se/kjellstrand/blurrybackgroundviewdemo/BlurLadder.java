@@ -0,0 +1,206 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Renders blurred frames at a quality level picked from a per-frame time
+ * budget. Level 0 blurs at the size of the input. Each level above that works
+ * on a mip of the input downsampled 2x once more, with the blur radius scaled
+ * down to match, and upsamples the result to the output size. A blur at level
+ * n costs about a 4^n:th of a blur at level 0, and large radii become cheap.
+ *
+ * The measured frame times are averaged, and the level goes up when the
+ * average exceeds the budget and down when there is room for the 4x cost of a
+ * lower level. Levels are only used when the blur at that level is at least a
+ * pixel wide, so that small radii look the same as when blurring at level 0.
+ * The radii of the levels come from BlurLevels, shared with the bench.
+ *
+ * The blur engine must be initialized for every level with
+ * getLevelBitmap before rendering, render only runs it, so that it can be
+ * called off the UI thread.
+ */
+public class BlurLadder {
+
+    // Max number of 2x downsamples.
+    private static final int MAX_LEVEL = BlurLevels.MAX_LEVEL;
+
+    // Smallest size of a mip.
+    private static final int MIN_MIP_SIZE = BlurLevels.MIN_MIP_SIZE;
+
+    // Weight of the latest frame time in the average frame time.
+    private static final float FRAME_TIME_WEIGHT = 0.25f;
+
+    // The level is lowered when the average frame time is below the budget
+    // divided by this, 4x the cost of a level with some margin.
+    private static final float LOWER_LEVEL_DIVISOR = 6f;
+
+    private final long frameBudgetNanos;
+
+    private final BitmapPool bitmapPool;
+
+    private final Canvas canvas = new Canvas();
+
+    private final Matrix matrix = new Matrix();
+
+    private final Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private final Rect outputRect = new Rect();
+
+    // Successive 2x downsamples of the input, index 0 is the input itself.
+    private final Bitmap[] mips = new Bitmap[MAX_LEVEL + 1];
+
+    // Per level bitmaps holding the scaled mip and the blurred result.
+    private final Bitmap[] scaledMips = new Bitmap[MAX_LEVEL + 1];
+
+    private final Bitmap[] blurredMips = new Bitmap[MAX_LEVEL + 1];
+
+    // Highest level that has a mip.
+    private int mipLevels = 0;
+
+    // The level picked from the measured frame times.
+    private int level = 0;
+
+    private float averageFrameNanos = 0;
+
+    /**
+     * Create a ladder.
+     *
+     * @param frameBudgetNanos The time a frame should take to render.
+     * @param bitmapPool Pool to borrow the mip bitmaps from.
+     */
+    public BlurLadder(long frameBudgetNanos, BitmapPool bitmapPool) {
+        this.frameBudgetNanos = frameBudgetNanos;
+        this.bitmapPool = bitmapPool;
+    }
+
+    /**
+     * Build the mips of inputBitmap, must be called when the input changes.
+     *
+     * @param inputBitmap The bitmap to blur in the following frames.
+     */
+    public void prepare(Bitmap inputBitmap) {
+        mips[0] = inputBitmap;
+        mipLevels = 0;
+        canvas.setMatrix(null);
+        for (int i = 1; i <= MAX_LEVEL; i++) {
+            int width = (mips[i - 1].getWidth() + 1) / 2;
+            int height = (mips[i - 1].getHeight() + 1) / 2;
+            if (width < MIN_MIP_SIZE || height < MIN_MIP_SIZE) {
+                break;
+            }
+            mips[i] = ensureSize(mips[i], width, height);
+            scaledMips[i] = ensureSize(scaledMips[i], width, height);
+            blurredMips[i] = ensureSize(blurredMips[i], width, height);
+            outputRect.set(0, 0, width, height);
+            canvas.setBitmap(mips[i]);
+            canvas.drawBitmap(mips[i - 1], null, outputRect, filterPaint);
+            mipLevels = i;
+        }
+        canvas.setBitmap(null);
+    }
+
+    /**
+     * @return The highest level that has a mip, from the last prepare.
+     */
+    public int getMipLevels() {
+        return mipLevels;
+    }
+
+    /**
+     * @param level A level from 1 to getMipLevels.
+     * @return A bitmap of the size blurred at level, to initialize the blur
+     *         engine with.
+     */
+    public Bitmap getLevelBitmap(int level) {
+        return scaledMips[level];
+    }
+
+    /**
+     * Render a frame: the input scaled around its center and blurred, at the
+     * level picked from earlier frame times. The time it takes is measured.
+     *
+     * @param blurEngine The engine to blur with, initialized for the input
+     *            size and the size of every level.
+     * @param scaledBitmap Bitmap of the input size to scale the input into at
+     *            level 0.
+     * @param outputBitmap The bitmap to render the frame to, the input size.
+     * @param scale The scale of the input.
+     * @param blurRadius The blur radius at the input size.
+     */
+    public void render(BlurEngine blurEngine, Bitmap scaledBitmap, Bitmap outputBitmap, float scale, float blurRadius) {
+        long start = System.nanoTime();
+
+        int frameLevel = Math.min(level, BlurLevels.getMaxLevel(blurRadius, mipLevels));
+        Bitmap target = frameLevel == 0 ? scaledBitmap : scaledMips[frameLevel];
+        Bitmap blurred = frameLevel == 0 ? outputBitmap : blurredMips[frameLevel];
+        matrix.setScale(scale, scale, target.getWidth() / 2, target.getHeight() / 2);
+        canvas.setBitmap(target);
+        canvas.drawColor(0xff000000);
+        canvas.setMatrix(matrix);
+        // Level 0 is drawn unfiltered, exactly as without a ladder.
+        canvas.drawBitmap(mips[frameLevel], matrix, frameLevel == 0 ? null : filterPaint);
+
+        blurEngine.run(blurred, target, BlurLevels.getLevelRadius(blurRadius, frameLevel));
+
+        if (frameLevel > 0) {
+            // Upsample the blurred mip to the output.
+            canvas.setBitmap(outputBitmap);
+            canvas.setMatrix(null);
+            outputRect.set(0, 0, outputBitmap.getWidth(), outputBitmap.getHeight());
+            canvas.drawBitmap(blurred, null, outputRect, filterPaint);
+        }
+        canvas.setBitmap(null);
+
+        retune(System.nanoTime() - start, frameLevel);
+    }
+
+    /**
+     * @return The level picked from the measured frame times.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Return the mip bitmaps to the pool.
+     */
+    public void release() {
+        mips[0] = null;
+        for (int i = 1; i <= MAX_LEVEL; i++) {
+            bitmapPool.put(mips[i]);
+            bitmapPool.put(scaledMips[i]);
+            bitmapPool.put(blurredMips[i]);
+            mips[i] = null;
+            scaledMips[i] = null;
+            blurredMips[i] = null;
+        }
+        mipLevels = 0;
+    }
+
+    private void retune(long frameNanos, int frameLevel) {
+        // Normalize the frame time to the picked level, frames rendered at a
+        // lower level because of a small radius cost 4x per level more.
+        float levelFrameNanos = frameNanos / (float) (1 << (2 * (level - frameLevel)));
+        averageFrameNanos = averageFrameNanos == 0 ? levelFrameNanos : averageFrameNanos * (1 - FRAME_TIME_WEIGHT)
+                + levelFrameNanos * FRAME_TIME_WEIGHT;
+        if (averageFrameNanos > frameBudgetNanos && level < mipLevels) {
+            level++;
+            averageFrameNanos /= 4;
+        } else if (averageFrameNanos < frameBudgetNanos / LOWER_LEVEL_DIVISOR && level > 0) {
+            level--;
+            averageFrameNanos *= 4;
+        }
+    }
+
+    private Bitmap ensureSize(Bitmap bitmap, int width, int height) {
+        if (bitmap != null && bitmap.getWidth() == width && bitmap.getHeight() == height) {
+            return bitmap;
+        }
+        bitmapPool.put(bitmap);
+        return bitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+    }
+}
@@ -0,0 +1,56 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+/**
+ * The blur radii of the quality levels of BlurLadder. Each level blurs a 2x
+ * downsample of the level below it, with the radius scaled down to blur as
+ * much at the input size. Pure Java, so that the levels can be compared with
+ * level 0 on a plain JVM.
+ */
+public class BlurLevels {
+
+    /**
+     * Max number of 2x downsamples.
+     */
+    public static final int MAX_LEVEL = 3;
+
+    /**
+     * Smallest size of a downsample, levels below it are not used.
+     */
+    public static final int MIN_MIP_SIZE = 8;
+
+    // The smallest blur sigma, in pixels of a level, that hides the loss of
+    // detail from downsampling to that level.
+    private static final float MIN_LEVEL_SIGMA = 1f;
+
+    private BlurLevels() {
+    }
+
+    /**
+     * The blur radius at a level that blurs as much as blurRadius at level 0,
+     * from the sigma ScriptIntrinsicBlur uses for a radius.
+     *
+     * @param blurRadius The blur radius at level 0.
+     * @param level The level.
+     * @return The blur radius at level.
+     */
+    public static float getLevelRadius(float blurRadius, int level) {
+        float sigma = (0.4f * blurRadius + 0.6f) / (1 << level);
+        return Math.max(0f, (sigma - 0.6f) / 0.4f);
+    }
+
+    /**
+     * The highest level where a blur of blurRadius hides the downsampling.
+     *
+     * @param blurRadius The blur radius at level 0.
+     * @param mipLevels The highest level that has a downsample.
+     * @return The level, at most mipLevels.
+     */
+    public static int getMaxLevel(float blurRadius, int mipLevels) {
+        float sigma = 0.4f * blurRadius + 0.6f;
+        int maxLevel = 0;
+        while (maxLevel < mipLevels && sigma / (1 << (maxLevel + 1)) >= MIN_LEVEL_SIGMA) {
+            maxLevel++;
+        }
+        return maxLevel;
+    }
+}
@@ -0,0 +1,312 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * A set of keyframes of the same bitmap blurred with increasing radii. The
+ * keyframes are blurred once, after that any radius in between the smallest
+ * and the largest keyframe radius can be drawn by cross-fading between the two
+ * nearest keyframes, which is a lot cheaper than blurring once per frame.
+ */
+public class BlurPyramid {
+
+    // The default keyframe radii, covers the blur radii used by
+    // BlurredBackgroundLayout.
+    public static final float[] DEFAULT_RADII = new float[] {
+            0f, 4f, 8f, 16f
+    };
+
+    // The keyframe radii, in increasing order.
+    private final float[] radii;
+
+    private final Bitmap[] keyframes;
+
+    // Pool the keyframe and region bitmaps are borrowed from.
+    private final BitmapPool bitmapPool;
+
+    // Paint used to draw the upper keyframe on top of the lower one.
+    private final Paint blendPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private final Paint keyframePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // Used to draw re-blurred regions into the keyframes.
+    private final Canvas canvas = new Canvas();
+
+    // The part of the keyframes affected by a change of the input.
+    private final Rect affectedRect = new Rect();
+
+    // The part of the input needed to blur affectedRect.
+    private final Rect sourceRect = new Rect();
+
+    // affectedRect relative to sourceRect.
+    private final Rect regionRect = new Rect();
+
+    // If the keyframes hold the blurred input, false until the first build
+    // and when they have been reallocated.
+    private boolean keyframesValid = false;
+
+    // Cache the keyframes are loaded from and stored to, null if not cached.
+    private BlurCache blurCache = null;
+
+    // The content hash of the input computed by a loadCached that did not
+    // bring the keyframes up to date, reused when they are stored after being
+    // blurred. Only valid until then.
+    private long inputHash;
+
+    private boolean inputHashValid = false;
+
+    // What the next update blurs, found by prepareUpdate: all keyframes, or
+    // the changed region copied from the input. The region bitmaps are
+    // borrowed from the pool until then.
+    private boolean rebuildPending = false;
+
+    private Bitmap region = null;
+
+    private Bitmap blurredRegion = null;
+
+    /**
+     * Create a pyramid with the given keyframe radii.
+     *
+     * @param radii The keyframe radii in increasing order.
+     * @param bitmapPool Pool to borrow bitmaps from.
+     */
+    public BlurPyramid(float[] radii, BitmapPool bitmapPool) {
+        if (radii.length == 0) {
+            throw new IllegalArgumentException("A blur pyramid needs at least one keyframe.");
+        }
+        this.radii = radii.clone();
+        this.keyframes = new Bitmap[radii.length];
+        this.bitmapPool = bitmapPool;
+    }
+
+    /**
+     * Set a cache to load the keyframes from with loadCached, and to store
+     * them to when built or updated. Keyframes of radius 0 are the input
+     * itself and are not cached.
+     *
+     * @param blurCache The cache, or null to not cache the keyframes.
+     */
+    public void setBlurCache(BlurCache blurCache) {
+        this.blurCache = blurCache;
+    }
+
+    /**
+     * Bring the keyframes up to date with inputBitmap without blurring, if
+     * possible. That is when inputBitmap has not changed since the last build
+     * or update, or when the keyframes of its pixels are cached.
+     *
+     * @param inputBitmap The bitmap to blur.
+     * @param changedRect The part of inputBitmap changed since the last build
+     *            or update.
+     * @return If the keyframes are up to date, else update must be called.
+     */
+    public boolean loadCached(Bitmap inputBitmap, Rect changedRect) {
+        inputHashValid = false;
+        if (keyframesValid && hasSize(inputBitmap) && changedRect.isEmpty()) {
+            return true;
+        }
+        if (blurCache == null) {
+            return false;
+        }
+        inputHash = blurCache.getContentHash(inputBitmap);
+        inputHashValid = true;
+        for (int i = 0; i < keyframes.length; i++) {
+            if (radii[i] != 0f && !blurCache.contains(BlurCache.getKey(inputHash, radii[i]))) {
+                return false;
+            }
+        }
+        ensureKeyframes(inputBitmap);
+        for (int i = 0; i < keyframes.length; i++) {
+            if (radii[i] == 0f) {
+                canvas.setBitmap(keyframes[i]);
+                canvas.drawBitmap(inputBitmap, 0, 0, null);
+                canvas.setBitmap(null);
+            } else if (!blurCache.load(BlurCache.getKey(inputHash, radii[i]), keyframes[i])) {
+                keyframesValid = false;
+                return false;
+            }
+        }
+        inputHashValid = false;
+        keyframesValid = true;
+        return true;
+    }
+
+    /**
+     * Blur the keyframes from inputBitmap. Keyframe bitmaps from an earlier
+     * build are reused if they have the same size. If loadCached was just
+     * called with inputBitmap, the hash it computed is used to store the
+     * keyframes.
+     *
+     * @param blurEngine An engine initialized for the size of inputBitmap.
+     * @param inputBitmap The bitmap to blur.
+     */
+    public void build(BlurEngine blurEngine, Bitmap inputBitmap) {
+        ensureKeyframes(inputBitmap);
+        for (int i = 0; i < keyframes.length; i++) {
+            blurEngine.run(keyframes[i], inputBitmap, radii[i]);
+        }
+        keyframesValid = true;
+        storeCached(inputBitmap);
+    }
+
+    /**
+     * Find what update has to blur where inputBitmap has changed since the
+     * last build or update: only the changed rectangle plus the reach of the
+     * blur kernel, unless that covers most of the bitmap in which case all
+     * keyframes are rebuilt. The blur engine must then be initialized for the
+     * returned bitmap before calling update, so that a failure to initialize
+     * it can be handled by the caller.
+     *
+     * @param inputBitmap The bitmap the pyramid was built from, changed in
+     *            changedRect.
+     * @param changedRect The changed part of inputBitmap.
+     * @return A bitmap of the size update blurs, or null if nothing has to be
+     *         blurred and update does nothing.
+     */
+    public Bitmap prepareUpdate(Bitmap inputBitmap, Rect changedRect) {
+        releaseRegion();
+        int width = inputBitmap.getWidth();
+        int height = inputBitmap.getHeight();
+        if (!keyframesValid || !hasSize(inputBitmap)) {
+            rebuildPending = true;
+            return inputBitmap;
+        }
+        if (changedRect.isEmpty()) {
+            return null;
+        }
+
+        // A changed pixel affects the blurred pixels within the kernel reach,
+        // and blurring those needs the input within the kernel reach of them.
+        int reach = getKernelReach();
+        affectedRect.set(changedRect);
+        affectedRect.inset(-reach, -reach);
+        affectedRect.intersect(0, 0, width, height);
+        sourceRect.set(affectedRect);
+        sourceRect.inset(-reach, -reach);
+        sourceRect.intersect(0, 0, width, height);
+
+        if (sourceRect.width() * sourceRect.height() * 2 > width * height) {
+            rebuildPending = true;
+            return inputBitmap;
+        }
+
+        region = bitmapPool.get(sourceRect.width(), sourceRect.height(), Bitmap.Config.ARGB_8888);
+        blurredRegion = bitmapPool.get(sourceRect.width(), sourceRect.height(), Bitmap.Config.ARGB_8888);
+        canvas.setBitmap(region);
+        canvas.drawBitmap(inputBitmap, -sourceRect.left, -sourceRect.top, null);
+        canvas.setBitmap(null);
+        regionRect.set(affectedRect);
+        regionRect.offset(-sourceRect.left, -sourceRect.top);
+        return region;
+    }
+
+    /**
+     * Blur the keyframes again as found by the last prepareUpdate. If
+     * loadCached was just called with inputBitmap, the hash it computed is
+     * used to store the keyframes.
+     *
+     * @param blurEngine The engine to blur with, initialized for the bitmap
+     *            returned by prepareUpdate.
+     * @param inputBitmap The bitmap passed to prepareUpdate.
+     */
+    public void update(BlurEngine blurEngine, Bitmap inputBitmap) {
+        if (rebuildPending) {
+            rebuildPending = false;
+            build(blurEngine, inputBitmap);
+            return;
+        }
+        if (region == null) {
+            return;
+        }
+        for (int i = 0; i < keyframes.length; i++) {
+            blurEngine.run(blurredRegion, region, radii[i]);
+            canvas.setBitmap(keyframes[i]);
+            canvas.drawBitmap(blurredRegion, regionRect, affectedRect, null);
+        }
+        canvas.setBitmap(null);
+        releaseRegion();
+        storeCached(inputBitmap);
+    }
+
+    /**
+     * Draw the pyramid blurred by radius, cross-faded from the two nearest
+     * keyframes. Radii outside the keyframe radii are clamped.
+     *
+     * @param canvas The canvas to draw to.
+     * @param matrix Transformation of the keyframes.
+     * @param radius The blur radius.
+     */
+    public void draw(Canvas canvas, Matrix matrix, float radius) {
+        int lower = 0;
+        while (lower < radii.length - 1 && radii[lower + 1] <= radius) {
+            lower++;
+        }
+        canvas.drawBitmap(keyframes[lower], matrix, keyframePaint);
+        if (lower < radii.length - 1 && radius > radii[lower]) {
+            float fraction = (radius - radii[lower]) / (radii[lower + 1] - radii[lower]);
+            blendPaint.setAlpha(Math.round(fraction * 255));
+            canvas.drawBitmap(keyframes[lower + 1], matrix, blendPaint);
+        }
+    }
+
+    // The distance in pixels a blur with the largest keyframe radius reaches,
+    // three standard deviations of the gaussian.
+    private int getKernelReach() {
+        return (int) Math.ceil(3 * (0.4f * radii[radii.length - 1] + 0.6f));
+    }
+
+    /**
+     * Return the keyframe bitmaps to the pool.
+     */
+    public void release() {
+        releaseRegion();
+        for (int i = 0; i < keyframes.length; i++) {
+            bitmapPool.put(keyframes[i]);
+            keyframes[i] = null;
+        }
+        keyframesValid = false;
+    }
+
+    private void releaseRegion() {
+        bitmapPool.put(region);
+        bitmapPool.put(blurredRegion);
+        region = null;
+        blurredRegion = null;
+        rebuildPending = false;
+    }
+
+    private boolean hasSize(Bitmap bitmap) {
+        return keyframes[0] != null && keyframes[0].getWidth() == bitmap.getWidth()
+                && keyframes[0].getHeight() == bitmap.getHeight();
+    }
+
+    // Allocate keyframes of the size of inputBitmap, unless they already are.
+    private void ensureKeyframes(Bitmap inputBitmap) {
+        if (hasSize(inputBitmap)) {
+            return;
+        }
+        for (int i = 0; i < keyframes.length; i++) {
+            bitmapPool.put(keyframes[i]);
+            keyframes[i] = bitmapPool.get(inputBitmap.getWidth(), inputBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        }
+        keyframesValid = false;
+    }
+
+    // Store the keyframes, written to their files on the write thread of the
+    // cache.
+    private void storeCached(Bitmap inputBitmap) {
+        if (blurCache != null) {
+            long contentHash = inputHashValid ? inputHash : blurCache.getContentHash(inputBitmap);
+            for (int i = 0; i < keyframes.length; i++) {
+                if (radii[i] != 0f) {
+                    blurCache.store(BlurCache.getKey(contentHash, radii[i]), keyframes[i]);
+                }
+            }
+        }
+        inputHashValid = false;
+    }
+}
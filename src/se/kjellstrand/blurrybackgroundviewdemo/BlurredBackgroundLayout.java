@@ -1,26 +1,34 @@
 
 package se.kjellstrand.blurrybackgroundviewdemo;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.animation.Animator;
-import android.animation.AnimatorSet;
-import android.animation.FloatEvaluator;
-import android.animation.ObjectAnimator;
+import android.animation.AnimatorListenerAdapter;
 import android.animation.ValueAnimator;
-import android.animation.Animator.AnimatorListener;
 import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.ColorFilter;
 import android.graphics.Matrix;
-import android.graphics.Bitmap.Config;
 import android.graphics.PorterDuff.Mode;
+import android.graphics.PorterDuffColorFilter;
 import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.renderscript.RSRuntimeException;
 import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Display;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewParent;
 import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 import android.widget.RelativeLayout;
@@ -29,11 +37,14 @@ import android.widget.RelativeLayout;
  * A layout that can blur and darker / zoom in its background and show a
  * details-view on-top of the blurred background. The blur animation is
  * triggered after runAnimations is called and a
- * ViewTreeObserver.OnPreDrawListener have had its preDraw method invoked. While
- * the views are animating onClick is disabled to avoid strange behaviors of the
- * views.
+ * ViewTreeObserver.OnPreDrawListener have had its preDraw method invoked. The
+ * in and out animations are one animation played forwards and backwards, a
+ * click while animating reverses it from where it is, reusing the background
+ * frames already rendered. Views can also be given a blurred background of
+ * their own with addBlurredRegion.
  */
 public class BlurredBackgroundLayout extends RelativeLayout {
+    private static final String LOG_TAG = BlurredBackgroundLayout.class.getCanonicalName();
 
     // Time for animations to run when showing/hiding the details view.
     private static final long IN_OUT_ANIMATION_DURATION = 200;
@@ -41,26 +52,47 @@ public class BlurredBackgroundLayout extends RelativeLayout {
     // Time for fade-out at the end of the hide animation.
     private static final long FADE_OUT_ANIMATION_DURATION = 100;
 
+    // Fraction of the animations that the fade-out runs over.
+    private static final float BACKGROUND_FADE_OUT_FRACTION = (float) FADE_OUT_ANIMATION_DURATION
+            / IN_OUT_ANIMATION_DURATION;
+
     // The blur radius used on the background at the end of animating in the
-    // details view.
-    private static final float BACKGROUND_MAX_BLUR_RADIUS = 16f;
+    // details view. The scale and darkening of the background are in
+    // BackgroundEffect, shared with the bench.
+    private static final float BACKGROUND_MAX_BLUR_RADIUS = BackgroundEffect.MAX_BLUR_RADIUS;
 
     // Fraction that the background will move north/up while animating in.
     private static final float BACKGROUND_MAX_Y_TRANS_FRACTION = 0.05f;
 
-    // Fraction that the background will scale down / move away from the user.
-    private static final float BACKGROUND_MIN_SCALE = 0.95f;
-
-    // Fraction that the background will fade towards black while animating in.
-    private static final float BACKGROUND_DARKEN_BY_FRACTION = 0.8f;
-
     // Factor that we scale down the background before applying blur and other
     // effects, the lower this value is the faster the effects can be applied.
-    private static final float BACKGROUND_SCALE_DOWN_FACTOR = 0.15f;
+    private static final float BACKGROUND_SCALE_DOWN_FACTOR = BackgroundEffect.SCALE_DOWN_FACTOR;
+
+    // The time rendering a background frame should take when using adaptive
+    // blur.
+    private static final long ADAPTIVE_BLUR_FRAME_BUDGET_NANOS = 4000000;
+
+    // Refresh rate assumed when the display is not known.
+    private static final float DEFAULT_REFRESH_RATE = 60f;
 
     // Fraction to fade the details view from and to.
     private static final float FOREGROUND_FADE_FRACTION = 0.2f;
 
+    // The blur radius of the blurred regions.
+    private static final float REGION_BLUR_RADIUS = BACKGROUND_MAX_BLUR_RADIUS;
+
+    // Max number of live blur updates per second if not set.
+    private static final float DEFAULT_LIVE_BLUR_FRAME_RATE = 15f;
+
+    // States of the details view.
+    private static final int STATE_HIDDEN = 0;
+
+    private static final int STATE_OPENING = 1;
+
+    private static final int STATE_OPEN = 2;
+
+    private static final int STATE_CLOSING = 3;
+
     // AtomicBoolean that indicates if the details view is visible or not.
     private AtomicBoolean isShowingDetails;
 
@@ -71,12 +103,259 @@ public class BlurredBackgroundLayout extends RelativeLayout {
     // view. Used to get start coordinates for the in animation.
     private View detailsViewOrigin;
 
-    // The imageview that holds the blurred background.
+    // The imageview that holds the blurred background, created when first
+    // needed and kept between openings.
     private ImageView backgroundImageView = null;
 
+    // The frame drawable shown by backgroundImageView, null if none.
+    private BitmapDrawable shownFrameDrawable = null;
+
+    // The bitmap the background frames are rendered to on the UI thread when
+    // not using the frame cache, and its drawable.
+    private Bitmap frameBitmap = null;
+
+    private BitmapDrawable frameDrawable = null;
+
+    // Filters that darken the background, one per step of the frame cache,
+    // created when first needed. null if not using the frame cache.
+    private ColorFilter[] darkenFilters = null;
+
+    // The apps content view, that the background and the details view are
+    // attached to while shown.
+    private ViewGroup contentRoot = null;
+
+    // The captured background while the details view is shown.
+    private Bitmap inputBitmap = null;
+
+    // Where the details view is animated from and to.
+    private final Rect detailsViewStartPos = new Rect();
+
+    private final Rect detailsViewEndPos = new Rect();
+
+    private float detailsViewStartScale = 1f;
+
+    private final int[] viewCoords = new int[2];
+
+    // One of the STATE_ constants.
+    private int state = STATE_HIDDEN;
+
+    // Drives the details view and the background from one fraction. Played
+    // forwards to show the details view and reversed to hide it, so only one
+    // animation, and one blur pipeline, runs at a time. Kept between openings.
+    private ValueAnimator detailsAnimator = null;
+
+    // Set when detailsAnimator is cancelled, its end then removes the views.
+    private boolean detailsAnimatorCancelled = false;
+
+    // If the background is fading out, set when animating out.
+    private boolean backgroundFading = false;
+
+    // When the current animation, or the part of it in one direction, started.
+    private long animationStartMillis;
+
+    // Measures the details view and its origin once laid out, and starts the
+    // in animation.
+    private final ViewTreeObserver.OnPreDrawListener detailsPreDrawListener = new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            getViewTreeObserver().removeOnPreDrawListener(this);
+            ViewGroup root = contentRoot;
+
+            // Measure the origin of the details view.
+            detailsViewOrigin.getLocationOnScreen(viewCoords);
+            detailsViewStartPos.left = viewCoords[0];
+            detailsViewStartPos.top = (int) (viewCoords[1] - root.getY());
+            detailsViewStartPos.right = detailsViewStartPos.left + detailsViewOrigin.getWidth();
+            detailsViewStartPos.bottom = (int) (detailsViewStartPos.top + detailsViewOrigin.getHeight() - root.getY());
+
+            // Center the details view.
+            detailsView.setX(root.getWidth() / 2 - detailsView.getWidth() / 2);
+            detailsView.setY(root.getHeight() / 2 - detailsView.getHeight() / 2 - root.getY());
+
+            // Measure the destination of the details view.
+            detailsView.getLocationOnScreen(viewCoords);
+            detailsViewEndPos.left = viewCoords[0];
+            detailsViewEndPos.top = viewCoords[1];
+            detailsViewEndPos.right = detailsViewEndPos.left + detailsView.getWidth();
+            detailsViewEndPos.bottom = detailsViewEndPos.top + detailsView.getHeight();
+
+            // Start the animation that brings in the details-view and
+            // fades/blurs the background.
+            animateIn();
+
+            return true;
+        }
+    };
+
+    // Renders the background frames on the worker thread of the background
+    // renderer. inputBitmap is only changed while the renderer is idle.
+    private final BackgroundBlurRenderer.FrameRenderer backgroundFrameRenderer = new BackgroundBlurRenderer.FrameRenderer() {
+        @Override
+        public void renderFrame(Bitmap frameBitmap, float scale, float blurRadius, float darken) {
+            renderBackgroundFrame(getContext(), inputBitmap, frameBitmap, scale, blurRadius, darken);
+        }
+    };
+
+    // Reverses the animations, or animates out the shown details view.
+    private final OnClickListener toggleClickListener = new OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            if (state == STATE_CLOSING) {
+                reverseToIn();
+            } else if (state == STATE_OPENING || state == STATE_OPEN) {
+                animateOut();
+            }
+        }
+    };
+
     // A temporary bitmap used to hold pixels in between image transformations.
     private Bitmap tmpBitmap;
 
+    // Canvas and matrix used to render the background frames.
+    private final Canvas frameCanvas = new Canvas();
+
+    private final Matrix frameMatrix = new Matrix();
+
+    // The engine used to blur the background, created when first needed if
+    // not set with setBlurEngine.
+    private BlurEngine blurEngine = null;
+
+    // If blurEngine was created by this layout, and so is released by it when
+    // the layout is detached.
+    private boolean ownsBlurEngine = false;
+
+    // If the background blur is precomputed in keyframes when the background
+    // is captured instead of blurred once per animation frame.
+    private boolean useKeyframeBlur = false;
+
+    // The keyframes of the captured background, null if not using keyframe
+    // blur.
+    private BlurPyramid blurPyramid = null;
+
+    // If the keyframes are kept in the shared BlurCache, so that a background
+    // that has been blurred before is loaded instead of blurred again, also
+    // after a restart of the app.
+    private boolean useBlurCache = false;
+
+    // Pool that the bitmaps used while animating are borrowed from, so that
+    // resizes and repeated openings of the details view reuse bitmaps.
+    private final BitmapPool bitmapPool = BitmapPool.getSharedPool();
+
+    // If the background frames rendered on the UI thread are kept in
+    // frameCache.
+    private boolean useFrameCache = false;
+
+    // The background frames rendered on the UI thread during one opening,
+    // shown again while animating out or reversing instead of rendered again.
+    // One step per display frame of the animation, null if not used.
+    private BackgroundFrameCache frameCache = null;
+
+    // If the blur quality is adapted to keep the per-frame cost within
+    // ADAPTIVE_BLUR_FRAME_BUDGET_NANOS.
+    private boolean useAdaptiveBlur = false;
+
+    // Picks the blur quality level when using adaptive blur, kept between
+    // openings so that the level it has learned is kept.
+    private BlurLadder blurLadder = null;
+
+    // If the background is scaled, blurred and darkened in one fused pass on
+    // the CPU instead of being drawn scaled, blurred and darkened by a color
+    // filter.
+    private boolean useFusedBlur = false;
+
+    // If the current animation uses the fused pass, the background image view
+    // is then not darkened by a color filter.
+    private boolean fusedBlurActive = false;
+
+    // The engine used for the fused pass, created when first needed.
+    private CpuBlurEngine fusedBlurEngine = null;
+
+    // The downscaled snapshot of this layout, kept between openings of the
+    // details view and only redrawn where the layout has changed.
+    private final BackgroundCapture backgroundCapture = new BackgroundCapture(BACKGROUND_SCALE_DOWN_FACTOR, bitmapPool);
+
+    // The part of the snapshot that changed in the last capture.
+    private final Rect capturedChangeRect = new Rect();
+
+    // Changes of the snapshot not yet blurred into the keyframes and the
+    // frames of the details view, and into the blurred regions. Every capture
+    // adds to both, as the snapshot is shared.
+    private final Rect keyframeChangeRect = new Rect();
+
+    private final Rect regionChangeRect = new Rect();
+
+    // If this layout is being captured, the blurred regions are then left out.
+    private boolean capturingBackground = false;
+
+    // Views with a blurred background, sampled from one blur of the snapshot.
+    private final List<View> blurredRegions = new ArrayList<View>();
+
+    // The backgrounds the blurred regions had when added, restored when they
+    // are removed. Same order as blurredRegions.
+    private final List<Drawable> regionBackgrounds = new ArrayList<Drawable>();
+
+    // The blurred snapshot shown by the blurred regions.
+    private Bitmap regionBitmap = null;
+
+    private final Rect regionSourceRect = new Rect();
+
+    private final int[] regionCoords = new int[2];
+
+    // Set while the blurred regions are redrawn, their invalidations are not
+    // changes of the background.
+    private boolean invalidatingRegions = false;
+
+    // The bounds of an invalidated descendant, in the coordinates of this
+    // layout.
+    private final Rect descendantDirtyRect = new Rect();
+
+    // If background frames are rendered on a worker thread instead of in the
+    // animation callbacks on the UI thread.
+    private boolean renderOffUiThread = false;
+
+    // Renders the background frames when rendering off the UI thread, created
+    // when first needed.
+    private BackgroundBlurRenderer backgroundBlurRenderer = null;
+
+    // If the background is captured and blurred again while the details view
+    // is shown, whenever the content behind it changes.
+    private boolean useLiveBlur = false;
+
+    // Min time between two live blur updates.
+    private long liveBlurFrameIntervalMillis = (long) (1000 / DEFAULT_LIVE_BLUR_FRAME_RATE);
+
+    // If live blur is running, while the details view is shown.
+    private boolean liveBlurRunning = false;
+
+    // If a live blur or blurred region update is posted, later changes are
+    // included in it.
+    private boolean backgroundUpdateScheduled = false;
+
+    private long lastBackgroundUpdateMillis = 0;
+
+    private long liveBlurStartNanos;
+
+    private final Runnable backgroundUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            backgroundUpdateScheduled = false;
+            updateLiveBackground();
+            updateBlurredRegions();
+        }
+    };
+
+    // Capture, frame and copy times and frame counts of the animations.
+    private final BackgroundAnimationMetrics animationMetrics = new BackgroundAnimationMetrics();
+
+    // Scrolling moves all of the content, so the whole snapshot is redrawn.
+    private final ViewTreeObserver.OnScrollChangedListener scrollChangedListener = new ViewTreeObserver.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged() {
+            backgroundCapture.invalidateAll();
+            scheduleBackgroundUpdate();
+        }
+    };
+
     public BlurredBackgroundLayout(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
     }
@@ -103,297 +382,919 @@ public class BlurredBackgroundLayout extends RelativeLayout {
         root.addView(detailsView);
     }
 
+    /**
+     * Set the engine used to blur the background. If no engine is set a
+     * RenderscriptBlurEngine is used, with a fallback to a CpuBlurEngine if
+     * RenderScript fails to initialize. An engine set here is not released
+     * by the layout, the same engine can be shared by several layouts, it
+     * then records to the metrics of the layout that last set it.
+     *
+     * @param blurEngine The blur engine to use for the next animation.
+     */
+    public void setBlurEngine(BlurEngine blurEngine) {
+        releaseOwnedBlurEngine();
+        this.blurEngine = blurEngine;
+        if (blurEngine != null) {
+            blurEngine.setMetrics(animationMetrics);
+        }
+    }
+
+    /**
+     * Set if the background blur should be precomputed in a few keyframes when
+     * the background is captured. Each animation frame then cross-fades
+     * between the two nearest keyframes instead of blurring the background.
+     *
+     * @param useKeyframeBlur true to precompute the blur in keyframes.
+     */
+    public void setUseKeyframeBlur(boolean useKeyframeBlur) {
+        this.useKeyframeBlur = useKeyframeBlur;
+    }
+
+    /**
+     * Set if the keyframes of keyframe blur should be cached, in memory and in
+     * files in the cache directory of the app. Opening the details view over
+     * a background that has been blurred before then loads the keyframes
+     * instead of blurring them.
+     *
+     * @param useBlurCache true to cache the keyframes.
+     */
+    public void setUseBlurCache(boolean useBlurCache) {
+        this.useBlurCache = useBlurCache;
+    }
+
+    /**
+     * Set if the blur should adapt its quality to keep the cost of a
+     * background frame within a budget. Frames are then blurred on successive
+     * 2x downsamples of the captured background, as many as the measured frame
+     * times call for, and upsampled. Not used together with keyframe blur.
+     *
+     * @param useAdaptiveBlur true to adapt the blur quality.
+     */
+    public void setUseAdaptiveBlur(boolean useAdaptiveBlur) {
+        this.useAdaptiveBlur = useAdaptiveBlur;
+    }
+
+    /**
+     * Set if the background should be scaled, blurred and darkened in one
+     * fused pass on the CPU. This reads and writes the pixels of a frame once
+     * instead of once per step, and no color filter is needed when drawing
+     * the background. Always uses a CpuBlurEngine, regardless of the engine
+     * set with setBlurEngine. Not used together with keyframe blur, takes
+     * precedence over adaptive blur.
+     *
+     * @param useFusedBlur true to use the fused pass.
+     */
+    public void setUseFusedBlur(boolean useFusedBlur) {
+        this.useFusedBlur = useFusedBlur;
+    }
+
+    /**
+     * Set if the background frames rendered on the UI thread should be kept
+     * for the opening of the details view, at one step of the animation
+     * fraction per display frame of the animation. Frames rendered while
+     * opening are then shown again while closing or reversing instead of
+     * rendered again, but the background only changes in those steps. Off
+     * by default, every frame is then rendered at its exact fraction.
+     *
+     * @param useFrameCache true to keep the rendered frames.
+     */
+    public void setUseFrameCache(boolean useFrameCache) {
+        this.useFrameCache = useFrameCache;
+    }
+
+    /**
+     * Set if the background frames should be rendered on a worker thread. The
+     * animations then only request frames and the newest completed frame is
+     * shown, so a slow blur drops background frames instead of stalling the
+     * animations.
+     *
+     * @param renderOffUiThread true to render on a worker thread.
+     */
+    public void setRenderOffUiThread(boolean renderOffUiThread) {
+        this.renderOffUiThread = renderOffUiThread;
+    }
+
+    /**
+     * Set if the background should be captured and blurred again while the
+     * details view is shown, whenever the content behind it changes. Changes
+     * are coalesced into at most one update per frame interval, only the
+     * changed parts are captured again and, with keyframe blur, blurred
+     * again. Nothing is blurred if the capture found no change. Updates are
+     * rendered on the UI thread, their CPU cost is reported by the animation
+     * metrics.
+     *
+     * @param useLiveBlur true to keep the blurred background up to date.
+     */
+    public void setUseLiveBlur(boolean useLiveBlur) {
+        this.useLiveBlur = useLiveBlur;
+    }
+
+    /**
+     * Set the max number of live blur and blurred region updates per second.
+     *
+     * @param frameRate Max updates per second, 15 if not set.
+     */
+    public void setLiveBlurFrameRate(float frameRate) {
+        liveBlurFrameIntervalMillis = (long) (1000 / frameRate);
+    }
+
+    /**
+     * Give a view a blurred background, the part of this layout behind it
+     * blurred, like frosted glass. All regions share one capture and one blur
+     * of this layout, each draws its part of it, so adding regions adds
+     * little cost. The regions are kept up to date like with live blur, while
+     * the details view is hidden. The background of the view is replaced
+     * until removeBlurredRegion is called. A region that is a child of this
+     * layout is left out of the capture.
+     *
+     * @param region The view to give a blurred background.
+     */
+    public void addBlurredRegion(View region) {
+        if (blurredRegions.contains(region)) {
+            return;
+        }
+        blurredRegions.add(region);
+        regionBackgrounds.add(region.getBackground());
+        region.setBackground(new BlurredRegionDrawable());
+        backgroundCapture.invalidateAll();
+        scheduleBackgroundUpdate();
+    }
+
+    /**
+     * Remove the blurred background of a view added with addBlurredRegion and
+     * give it back the background it had, unless its background has been
+     * replaced since.
+     *
+     * @param region The view to remove the blurred background of.
+     */
+    public void removeBlurredRegion(View region) {
+        int index = blurredRegions.indexOf(region);
+        if (index < 0) {
+            return;
+        }
+        blurredRegions.remove(index);
+        Drawable background = regionBackgrounds.remove(index);
+        if (region.getBackground() instanceof BlurredRegionDrawable) {
+            region.setBackground(background);
+        }
+        // The region is drawn in the next capture.
+        backgroundCapture.invalidateAll();
+    }
+
+    /**
+     * @return The metrics of the background animations, with a listener that
+     *         is notified after each animation and a dump of all metrics.
+     */
+    public BackgroundAnimationMetrics getAnimationMetrics() {
+        return animationMetrics;
+    }
+
+    /**
+     * @return The renderer used when rendering off the UI thread, holds the
+     *         counts of skipped and dropped frames. null if not used yet.
+     */
+    public BackgroundBlurRenderer getBackgroundBlurRenderer() {
+        return backgroundBlurRenderer;
+    }
+
     /**
      * Starts the in animation of the details view and the in animation of the
-     * background.
+     * background. Does nothing while the details view is shown.
      *
      * @param activity The activity showing the details view.
      * @param isShowingDetails AtomicBoolean that indicates if the details view
      *            is visible or not.
      */
     public void runAnimations(final Activity activity, AtomicBoolean isShowingDetails) {
+        if (state != STATE_HIDDEN) {
+            return;
+        }
 
         this.setVisibility(View.VISIBLE);
 
         this.isShowingDetails = isShowingDetails;
+        isShowingDetails.set(true);
 
         // activity.getActionBar().hide();
 
-        backgroundImageView = new ImageView(activity);
+        if (backgroundImageView == null) {
+            backgroundImageView = new ImageView(activity);
+        }
 
         // Retrieve the apps content view, will be used to attach the blurred
         // background and the details view to.
         final ViewGroup root = (ViewGroup) activity.getWindow().getDecorView().findViewById(android.R.id.content);
+        contentRoot = root;
 
         // Render the visible views to a bitmap to be used for blurring the
-        // background while animating.
-        Config config = Bitmap.Config.ARGB_8888;
-        final Bitmap inputBitmap = Bitmap.createBitmap((int) (root.getWidth() * BACKGROUND_SCALE_DOWN_FACTOR),
-                (int) (root.getHeight() * BACKGROUND_SCALE_DOWN_FACTOR), config);
-        Canvas canvas = new Canvas(inputBitmap);
-        Matrix matrix = new Matrix();
-        matrix.setScale(BACKGROUND_SCALE_DOWN_FACTOR, BACKGROUND_SCALE_DOWN_FACTOR);
-        canvas.drawColor(0xff000000);
-        canvas.setMatrix(matrix);
-        draw(canvas);
+        // background while animating. Only the views that changed since the
+        // last time are rendered again.
+        long captureStart = System.nanoTime();
+        inputBitmap = captureBackground(getCaptureWidth(), getCaptureHeight());
+        animationMetrics.recordCapture(System.nanoTime() - captureStart);
+        takeChangeRect(keyframeChangeRect, inputBitmap, capturedChangeRect);
+
+        if (useKeyframeBlur) {
+            // Blur the keyframes once, or where the capture changed, the in
+            // and out animations only blend between them. Keyframes that are
+            // up to date or cached are not blurred again.
+            long keyframeStart = System.nanoTime();
+            if (blurPyramid == null) {
+                blurPyramid = new BlurPyramid(BlurPyramid.DEFAULT_RADII, bitmapPool);
+            }
+            blurPyramid.setBlurCache(useBlurCache ? BlurCache.getSharedCache(activity) : null);
+            boolean cached = blurPyramid.loadCached(inputBitmap, capturedChangeRect);
+            if (!cached) {
+                updateBlurPyramid(activity);
+            }
+            animationMetrics.recordKeyframes(System.nanoTime() - keyframeStart, cached);
+        } else if (blurPyramid != null) {
+            blurPyramid.release();
+            blurPyramid = null;
+        }
+
+        fusedBlurActive = useFusedBlur && !useKeyframeBlur;
+        if (fusedBlurActive) {
+            if (fusedBlurEngine == null) {
+                fusedBlurEngine = new CpuBlurEngine();
+                fusedBlurEngine.setMetrics(animationMetrics);
+            }
+        } else if (fusedBlurEngine != null) {
+            fusedBlurEngine.release();
+            fusedBlurEngine = null;
+        }
+
+        if (useAdaptiveBlur) {
+            if (blurLadder == null) {
+                blurLadder = new BlurLadder(ADAPTIVE_BLUR_FRAME_BUDGET_NANOS, bitmapPool);
+            }
+            blurLadder.prepare(inputBitmap);
+        } else if (blurLadder != null) {
+            blurLadder.release();
+            blurLadder = null;
+        }
 
         root.addView(backgroundImageView);
 
         detailsView.bringToFront();
 
-        final Bitmap outputBitmap = Bitmap.createBitmap(inputBitmap);
+        // Wait for all the views to be measured so that we can start the
+        // details view animations from the correct location and move the view
+        // to the correct destination.
+        getViewTreeObserver().addOnPreDrawListener(detailsPreDrawListener);
+    }
 
-        final int[] viewCoords = new int[2];
+    @Override
+    public ViewParent invalidateChildInParent(int[] location, Rect dirty) {
+        ViewParent parent = super.invalidateChildInParent(location, dirty);
+        if (invalidatingRegions) {
+            // The blurred regions are not part of the snapshot.
+            return parent;
+        }
+        // If the invalidation was handled here dirty has been translated to
+        // the coordinates of this layout, else the area is unknown.
+        backgroundCapture.invalidate(parent != null ? dirty : null);
+        scheduleBackgroundUpdate();
+        return parent;
+    }
 
-        final Rect detailsViewStartPos = new Rect();
+    @Override
+    public void onDescendantInvalidated(View child, View target) {
+        // Called instead of invalidateChildInParent from API 26 when hardware
+        // accelerated, without the dirty area, so the bounds of the
+        // invalidated view are taken as the dirty area.
+        super.onDescendantInvalidated(child, target);
+        if (invalidatingRegions) {
+            return;
+        }
+        backgroundCapture.invalidate(getDescendantBounds(target, descendantDirtyRect) ? descendantDirtyRect : null);
+        scheduleBackgroundUpdate();
+    }
 
-        final Rect detailsViewEndPos = new Rect();
+    // Put the bounds of a descendant in the coordinates of this layout in
+    // bounds. False if they are not known, when the descendant is detached or
+    // it or a parent below this layout is transformed, as the offsets do not
+    // include transforms and a transformed view may have been drawn
+    // elsewhere before.
+    private boolean getDescendantBounds(View descendant, Rect bounds) {
+        if (!descendant.isAttachedToWindow()) {
+            return false;
+        }
+        View view = descendant;
+        while (view != this) {
+            if (!view.getMatrix().isIdentity()) {
+                return false;
+            }
+            ViewParent parent = view.getParent();
+            if (!(parent instanceof View)) {
+                // Not a descendant of this layout.
+                return false;
+            }
+            view = (View) parent;
+        }
+        bounds.set(0, 0, descendant.getWidth(), descendant.getHeight());
+        offsetDescendantRectToMyCoords(descendant, bounds);
+        return true;
+    }
 
-        // Wait for all the views to be measured so that we can start the
-        // details view animations from the correct location and move the view
-        // to the correct destination.
-        ViewTreeObserver observer = getViewTreeObserver();
-        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
-            @Override
-            public boolean onPreDraw() {
-                BlurredBackgroundLayout.this.getViewTreeObserver().removeOnPreDrawListener(this);
-
-                // Measure the origin of the details view.
-                detailsViewOrigin.getLocationOnScreen(viewCoords);
-                detailsViewStartPos.left = viewCoords[0];
-                detailsViewStartPos.top = (int) (viewCoords[1] - root.getY());
-                detailsViewStartPos.right = detailsViewStartPos.left + detailsViewOrigin.getWidth();
-                detailsViewStartPos.bottom = (int) (detailsViewStartPos.top + detailsViewOrigin.getHeight() - root.getY());
-
-                // Center the details view.
-                detailsView.setX(root.getWidth() / 2 - detailsView.getWidth() / 2);
-                detailsView.setY(root.getHeight() / 2 - detailsView.getHeight() / 2 - root.getY());
-
-                // Measure the destination of the details view.
-                detailsView.getLocationOnScreen(viewCoords);
-                detailsViewEndPos.left = viewCoords[0];
-                detailsViewEndPos.top = viewCoords[1];
-                detailsViewEndPos.right = detailsViewEndPos.left + detailsView.getWidth();
-                detailsViewEndPos.bottom = detailsViewEndPos.top + detailsView.getHeight();
-
-
-                // Start the animation that brings in the details-view and
-                // fades/blurs the background.
-                animateIn(activity, backgroundImageView, root, inputBitmap, outputBitmap, detailsViewStartPos, detailsViewEndPos);
-
-                return true;
+    @Override
+    protected boolean drawChild(Canvas canvas, View child, long drawingTime) {
+        if (capturingBackground && blurredRegions.contains(child)) {
+            // Blurred regions show what is behind them, not themselves.
+            return false;
+        }
+        return super.drawChild(canvas, child, drawingTime);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        backgroundCapture.invalidateAll();
+        scheduleBackgroundUpdate();
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        super.onLayout(changed, l, t, r, b);
+        // The blurred regions may have moved.
+        scheduleBackgroundUpdate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getViewTreeObserver().addOnScrollChangedListener(scrollChangedListener);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        getViewTreeObserver().removeOnScrollChangedListener(scrollChangedListener);
+        if (detailsAnimator != null) {
+            detailsAnimator.cancel();
+        }
+        finishAnimateOut();
+        removeCallbacks(backgroundUpdateRunnable);
+        backgroundUpdateScheduled = false;
+        for (View region : blurredRegions) {
+            Drawable background = region.getBackground();
+            if (background instanceof BlurredRegionDrawable) {
+                ((BlurredRegionDrawable) background).clearSource();
             }
-        });
+        }
+        bitmapPool.put(regionBitmap);
+        regionBitmap = null;
+        releaseFrameCache();
+        bitmapPool.put(frameBitmap);
+        frameBitmap = null;
+        frameDrawable = null;
+        if (backgroundBlurRenderer != null) {
+            backgroundBlurRenderer.quit();
+            backgroundBlurRenderer = null;
+        }
+        backgroundCapture.release();
+        if (blurLadder != null) {
+            blurLadder.release();
+        }
+        if (blurPyramid != null) {
+            blurPyramid.release();
+            blurPyramid = null;
+        }
+        if (fusedBlurEngine != null) {
+            fusedBlurEngine.release();
+            fusedBlurEngine = null;
+        }
+        bitmapPool.put(tmpBitmap);
+        tmpBitmap = null;
+        releaseOwnedBlurEngine();
+        super.onDetachedFromWindow();
     }
 
     /**
      * A method for closing the details view, used from the activity's
-     * onBackPressed method to simulate normal back behavior.
+     * onBackPressed method to simulate normal back behavior. Reverses the in
+     * animation if it is running, does nothing while closing.
      */
     public void forceCloseDetailsView() {
-        if (detailsView != null) {
-            detailsView.performClick();
+        if (state == STATE_OPENING || state == STATE_OPEN) {
+            animateOut();
         }
     }
 
-    private void animateIn(final Activity activity, final ImageView bgImageView, final ViewGroup root, final Bitmap inputBitmap,
-            final Bitmap outputBitmap, final Rect innerViewStartPos, final Rect innerViewEndPos) {
-
-        // Disable all click listeners while animating.
-        setClickListener(root, null);
+    private void animateIn() {
+        detailsView.setPivotX(0);
+        detailsView.setPivotY(0);
+        detailsViewStartScale = (float) detailsViewStartPos.width() / detailsViewEndPos.width();
+        backgroundFading = false;
 
         // Initialize the temporary bitmap if its null or different in size from
         // the input bitmap.
         if (tmpBitmap == null || tmpBitmap.getHeight() != inputBitmap.getHeight() || tmpBitmap.getWidth() != inputBitmap.getWidth()) {
-            tmpBitmap = Bitmap.createBitmap(inputBitmap);
-        }
-
-        final Canvas canvas = new Canvas(tmpBitmap);
-        final Matrix matrix = new Matrix();
-
-        ValueAnimator blurAnim = ValueAnimator.ofFloat(1, 1);
-        AnimatorUpdateListener blurUpdateListener = new AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(ValueAnimator va) {
-                float scale = ((1 - BACKGROUND_MIN_SCALE) * (1 - va.getAnimatedFraction()) + BACKGROUND_MIN_SCALE);
-                matrix.setScale(scale, scale, tmpBitmap.getWidth() / 2, tmpBitmap.getHeight() / 2);
-                canvas.drawColor(0xff000000);
-                canvas.setMatrix(matrix);
-                canvas.drawBitmap(inputBitmap, matrix, null);
-
-                RenderscriptHelper.init(activity, tmpBitmap);
-                RenderscriptHelper.run(outputBitmap, tmpBitmap, //
-                        BACKGROUND_MAX_BLUR_RADIUS * va.getAnimatedFraction());
-                bgImageView.setImageBitmap(outputBitmap);
-            }
-        };
-        blurAnim.addUpdateListener(blurUpdateListener);
+            bitmapPool.put(tmpBitmap);
+            tmpBitmap = bitmapPool.get(inputBitmap.getWidth(), inputBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        }
 
-        AnimatorListener animatorListener = new AnimatorListener() {
-            @Override
-            public void onAnimationCancel(Animator arg0) {
+        // The engines are initialized here, the worker thread only runs them.
+        initFrameEngines(getContext());
+        prepareFrameCache();
+
+        if (renderOffUiThread) {
+            if (backgroundBlurRenderer == null) {
+                backgroundBlurRenderer = new BackgroundBlurRenderer(bitmapPool);
             }
+            backgroundBlurRenderer.begin(backgroundImageView, inputBitmap.getWidth(), inputBitmap.getHeight(),
+                    backgroundFrameRenderer);
+        }
+
+        // Clicks and back presses reverse the animations from where they are.
+        setClickListener(contentRoot, toggleClickListener);
+
+        beginAnimationMetrics();
+        state = STATE_OPENING;
+        getDetailsAnimator().start();
+    }
+
+    // Reverse the out animation, the details view and the background are
+    // animated back in from where they are.
+    private void reverseToIn() {
+        endAnimationMetrics(false);
+        beginAnimationMetrics();
+        state = STATE_OPENING;
+        detailsAnimator.reverse();
+    }
+
+    // Animate out the details view and the background, from where the in
+    // animation is if it is running.
+    private void animateOut() {
+        stopLiveBlur();
+        if (state == STATE_OPENING) {
+            endAnimationMetrics(true);
+        }
+        beginAnimationMetrics();
+        state = STATE_CLOSING;
+        backgroundFading = true;
+        detailsAnimator.reverse();
+    }
 
-            @Override
-            public void onAnimationEnd(Animator arg0) {
-                OnClickListener clickLisstener = new OnClickListener() {
-                    @Override
-                    public void onClick(View arg0) {
-                        animateOut(activity, backgroundImageView, root, inputBitmap, outputBitmap, innerViewStartPos,
-                                innerViewEndPos);
+    private ValueAnimator getDetailsAnimator() {
+        if (detailsAnimator == null) {
+            detailsAnimator = ValueAnimator.ofFloat(0f, 1f);
+            detailsAnimator.setDuration(IN_OUT_ANIMATION_DURATION);
+            detailsAnimator.addUpdateListener(new AnimatorUpdateListener() {
+                @Override
+                public void onAnimationUpdate(ValueAnimator va) {
+                    applyFraction(va.getAnimatedFraction());
+                }
+            });
+            detailsAnimator.addListener(new AnimatorListenerAdapter() {
+                @Override
+                public void onAnimationCancel(Animator animator) {
+                    detailsAnimatorCancelled = true;
+                }
+
+                @Override
+                public void onAnimationEnd(Animator animator) {
+                    if (state == STATE_OPENING && !detailsAnimatorCancelled) {
+                        endAnimationMetrics(true);
+                        state = STATE_OPEN;
+                        startLiveBlur();
+                    } else {
+                        detailsAnimatorCancelled = false;
+                        finishAnimateOut();
                     }
-                };
-                // Enable click listeners as the in animation is finished.
-                setClickListener(root, clickLisstener);
-            }
+                }
+            });
+        }
+        return detailsAnimator;
+    }
 
-            @Override
-            public void onAnimationRepeat(Animator arg0) {
+    /**
+     * Show the details view and the background at a fraction of the
+     * animations, 0 when hidden and 1 when shown.
+     */
+    private void applyFraction(float fraction) {
+        updateBackground(fraction);
+        if (!fusedBlurActive) {
+            // Darkened by the fused pass otherwise. With the frame cache the
+            // filters step with the frames, and are reused.
+            if (frameCache != null) {
+                backgroundImageView.setColorFilter(getDarkenFilter(frameCache.getStep(fraction)));
+            } else {
+                backgroundImageView.setColorFilter(PixelOps.darkenColor(BackgroundEffect.getDarken(fraction)),
+                        Mode.MULTIPLY);
             }
+        }
+        // Fade out the background at the end of the out animation, and back in
+        // if reversed.
+        backgroundImageView.setAlpha(backgroundFading ? Math.min(1f, fraction / BACKGROUND_FADE_OUT_FRACTION) : 1f);
+
+        float detailsScale = detailsViewStartScale + (1f - detailsViewStartScale) * fraction;
+        detailsView.setAlpha(FOREGROUND_FADE_FRACTION + (1f - FOREGROUND_FADE_FRACTION) * fraction);
+        detailsView.setScaleX(detailsScale);
+        detailsView.setScaleY(detailsScale);
+        detailsView.setX(detailsViewStartPos.left + (detailsViewEndPos.left - detailsViewStartPos.left) * fraction);
+        detailsView.setY(detailsViewStartPos.top + (detailsViewEndPos.top - detailsViewStartPos.top) * fraction);
+    }
 
-            @Override
-            public void onAnimationStart(Animator arg0) {
-            }
-        };
-        blurAnim.addListener(animatorListener);
+    /**
+     * Show a new frame of the background, rendered or from the frame cache,
+     * or, when rendering off the UI thread, requested from the background
+     * renderer.
+     */
+    private void updateBackground(float fraction) {
+        if (backgroundBlurRenderer != null && backgroundBlurRenderer.isActive()) {
+            backgroundBlurRenderer.requestFrame(BackgroundEffect.getScale(fraction),
+                    BackgroundEffect.getBlurRadius(fraction), BackgroundEffect.getDarken(fraction));
+            // The renderer shows drawables of its own.
+            shownFrameDrawable = null;
+            return;
+        }
+        showFrame(fraction);
+    }
 
-        detailsView.setPivotX(0);
-        detailsView.setPivotY(0);
+    // Show the frame of a fraction, from the frame cache if used, else
+    // rendered at the fraction.
+    private void showFrame(float fraction) {
+        if (frameCache != null) {
+            showCachedFrame(fraction);
+            return;
+        }
+        int width = inputBitmap.getWidth();
+        int height = inputBitmap.getHeight();
+        if (frameBitmap == null || frameBitmap.getWidth() != width || frameBitmap.getHeight() != height) {
+            bitmapPool.put(frameBitmap);
+            frameBitmap = bitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+            frameDrawable = new BitmapDrawable(getResources(), frameBitmap);
+        }
+        renderBackgroundFrame(getContext(), inputBitmap, frameBitmap, BackgroundEffect.getScale(fraction),
+                BackgroundEffect.getBlurRadius(fraction), BackgroundEffect.getDarken(fraction));
+        if (frameDrawable != shownFrameDrawable) {
+            backgroundImageView.setImageDrawable(frameDrawable);
+            shownFrameDrawable = frameDrawable;
+        } else {
+            backgroundImageView.invalidate();
+        }
+    }
+
+    /**
+     * Show the frame of the nearest step of the frame cache, rendered right
+     * away if that step has not been rendered. Nothing is drawn if the frame
+     * is already shown and up to date, it is still counted as a shown frame.
+     */
+    private void showCachedFrame(float fraction) {
+        int step = frameCache.getStep(fraction);
+        int width = inputBitmap.getWidth();
+        int height = inputBitmap.getHeight();
+        boolean rendered = false;
+        if (!frameCache.isRendered(step)) {
+            float stepFraction = frameCache.getFraction(step);
+            renderBackgroundFrame(getContext(), inputBitmap, frameCache.getBitmap(step, width, height),
+                    BackgroundEffect.getScale(stepFraction), BackgroundEffect.getBlurRadius(stepFraction),
+                    BackgroundEffect.getDarken(stepFraction));
+            frameCache.setRendered(step);
+            rendered = true;
+        } else {
+            animationMetrics.recordCachedFrame();
+        }
+        BitmapDrawable stepDrawable = frameCache.getDrawable(step, width, height, getResources());
+        if (stepDrawable != shownFrameDrawable) {
+            backgroundImageView.setImageDrawable(stepDrawable);
+            shownFrameDrawable = stepDrawable;
+        } else if (rendered) {
+            backgroundImageView.invalidate();
+        }
+    }
+
+    // Create the frame cache if used, with one step per display frame of the
+    // animation, or release it if not.
+    private void prepareFrameCache() {
+        if (!useFrameCache) {
+            releaseFrameCache();
+            return;
+        }
+        int steps = Math.max(1, Math.round(IN_OUT_ANIMATION_DURATION * getRefreshRate() / 1000));
+        if (frameCache != null && frameCache.getSteps() == steps) {
+            return;
+        }
+        releaseFrameCache();
+        frameCache = new BackgroundFrameCache(steps, bitmapPool);
+        darkenFilters = new ColorFilter[steps + 1];
+    }
 
-        AnimatorSet animSet = new AnimatorSet();
-
-        float yTranslate = -getHeight() * BACKGROUND_MAX_Y_TRANS_FRACTION;
-        float scale = (float) innerViewStartPos.width() / innerViewEndPos.width();
-        animSet.setDuration(IN_OUT_ANIMATION_DURATION);
-        // Syncronize the animations
-        animSet.playTogether(
-                getBgAnimatorSet(blurAnim, bgImageView, 0, yTranslate, 1f, BACKGROUND_DARKEN_BY_FRACTION),//
-                getFgAnimatorSet(FOREGROUND_FADE_FRACTION, 1f, scale, 1f, //
-                        innerViewStartPos.left, innerViewEndPos.left,//
-                        innerViewStartPos.top, innerViewEndPos.top));
-
-        // Play the animations.
-        animSet.start();
-    }
-
-    private void animateOut(final Activity activity, final ImageView bgImageView, final ViewGroup root, final Bitmap inputBitmap,
-            final Bitmap outputBitmap, Rect innerViewStartPos, Rect innerViewEndPos) {
-
-        // Prevent multiple clicks causing multiple animateOut calls resulting
-        // in broken animations
-        setClickListener(root, null);
-
-        final Canvas canvas = new Canvas(tmpBitmap);
-        final Matrix matrix = new Matrix();
-
-        ValueAnimator blurAnim = ValueAnimator.ofFloat(1, 1);
-        AnimatorUpdateListener updateListener = new AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(ValueAnimator va) {
-                float scale = ((1 - BACKGROUND_MIN_SCALE) * (va.getAnimatedFraction()) + BACKGROUND_MIN_SCALE);
-                matrix.setScale(scale, scale, tmpBitmap.getWidth() / 2, tmpBitmap.getHeight() / 2);
-                canvas.drawColor(0xff000000);
-                canvas.setMatrix(matrix);
-                canvas.drawBitmap(inputBitmap, matrix, null);
-
-                RenderscriptHelper.init(activity, tmpBitmap);
-                RenderscriptHelper.run(outputBitmap, tmpBitmap, //
-                        BACKGROUND_MAX_BLUR_RADIUS * (1 - va.getAnimatedFraction()));
-                bgImageView.setImageBitmap(outputBitmap);
+    private void releaseFrameCache() {
+        if (frameCache != null) {
+            frameCache.release();
+            frameCache = null;
+            darkenFilters = null;
+        }
+    }
+
+    private ColorFilter getDarkenFilter(int step) {
+        if (darkenFilters[step] == null) {
+            int color = PixelOps.darkenColor(BackgroundEffect.getDarken(frameCache.getFraction(step)));
+            darkenFilters[step] = new PorterDuffColorFilter(color, Mode.MULTIPLY);
+        }
+        return darkenFilters[step];
+    }
+
+    /**
+     * Render one frame of the background into outputBitmap, the input scaled
+     * around its center and blurred. With keyframe blur the frame is drawn
+     * from the blur pyramid, with fused blur the input is scaled, blurred and
+     * darkened in one pass, else the scaled input is drawn into tmpBitmap and
+     * blurred into outputBitmap. Only called from one thread at a time, the
+     * engines must have been initialized with initFrameEngines.
+     */
+    private void renderBackgroundFrame(Context context, Bitmap inputBitmap, Bitmap outputBitmap, float scale,
+            float blurRadius, float darken) {
+        long start = System.nanoTime();
+        drawBackgroundFrame(context, inputBitmap, outputBitmap, scale, blurRadius, darken);
+        animationMetrics.recordFrame(System.nanoTime() - start);
+    }
+
+    private void drawBackgroundFrame(Context context, Bitmap inputBitmap, Bitmap outputBitmap, float scale,
+            float blurRadius, float darken) {
+        frameMatrix.setScale(scale, scale, outputBitmap.getWidth() / 2, outputBitmap.getHeight() / 2);
+        if (blurPyramid != null) {
+            frameCanvas.setBitmap(outputBitmap);
+            frameCanvas.drawColor(0xff000000);
+            frameCanvas.setMatrix(frameMatrix);
+            blurPyramid.draw(frameCanvas, frameMatrix, blurRadius);
+            return;
+        }
+        if (fusedBlurActive) {
+            // The drawn input is scaled by the matrix twice, by the canvas and
+            // by drawBitmap, so the fused pass scales by the square.
+            fusedBlurEngine.runFused(outputBitmap, inputBitmap, scale * scale, blurRadius,
+                    PixelOps.darkenColor(darken));
+            return;
+        }
+        if (blurLadder != null) {
+            blurLadder.render(blurEngine, tmpBitmap, outputBitmap, scale, blurRadius);
+            return;
+        }
+        if (blurEngine instanceof CpuBlurEngine) {
+            // Scale while blurring, in the pixel buffers of the engine, instead
+            // of drawing the scaled input into tmpBitmap first.
+            ((CpuBlurEngine) blurEngine).runFused(outputBitmap, inputBitmap, scale * scale, blurRadius, 0xffffffff);
+            return;
+        }
+        frameCanvas.setBitmap(tmpBitmap);
+        frameCanvas.drawColor(0xff000000);
+        frameCanvas.setMatrix(frameMatrix);
+        frameCanvas.drawBitmap(inputBitmap, frameMatrix, null);
+
+        blurEngine.run(outputBitmap, tmpBitmap, blurRadius);
+    }
+
+    // Blur the keyframes again where the last capture changed. The engine is
+    // initialized for the size the pyramid blurs through initBlurEngine, so
+    // that a RenderScript failure falls back to the CPU.
+    private void updateBlurPyramid(Context context) {
+        Bitmap blurSize = blurPyramid.prepareUpdate(inputBitmap, capturedChangeRect);
+        if (blurSize != null) {
+            initBlurEngine(context, blurSize);
+            blurPyramid.update(blurEngine, inputBitmap);
+        }
+    }
+
+    // Initialize the engines drawBackgroundFrame uses for the size of the
+    // captured background, and for the size of every level of the blur
+    // ladder. Called on the UI thread, as initBlurEngine may replace
+    // blurEngine.
+    private void initFrameEngines(Context context) {
+        if (blurPyramid != null) {
+            return;
+        }
+        if (fusedBlurActive) {
+            fusedBlurEngine.init(context, inputBitmap);
+            return;
+        }
+        initBlurEngine(context, inputBitmap);
+        if (blurLadder != null) {
+            for (int level = 1; level <= blurLadder.getMipLevels(); level++) {
+                initBlurEngine(context, blurLadder.getLevelBitmap(level));
             }
-        };
-        blurAnim.addUpdateListener(updateListener);
-
-        AnimatorSet fgAndBgAnimSet = new AnimatorSet();
-        float yTranslate = -getHeight() * BACKGROUND_MAX_Y_TRANS_FRACTION;
-        float scale = (float) innerViewStartPos.width() / innerViewEndPos.width();
-        fgAndBgAnimSet.setDuration(IN_OUT_ANIMATION_DURATION);
-        fgAndBgAnimSet.playTogether(
-                getBgAnimatorSet(blurAnim, bgImageView, yTranslate, 0, BACKGROUND_DARKEN_BY_FRACTION, 1f), //
-                getFgAnimatorSet(1f, FOREGROUND_FADE_FRACTION, 1f, scale, innerViewEndPos.left, innerViewStartPos.left,
-                        innerViewEndPos.top, innerViewStartPos.top));
-
-        AnimatorSet animSet = new AnimatorSet();
-        animSet.playTogether(fgAndBgAnimSet, getFadeOutAnimatorSet(bgImageView));
-        animSet.addListener(getFinishAnimatorListener(activity, bgImageView, root));
-        animSet.start();
-    }
-
-    private AnimatorSet getFadeOutAnimatorSet(final ImageView bgImageView) {
-        AnimatorSet fadeOutAnim = new AnimatorSet();
-        fadeOutAnim.setDuration(FADE_OUT_ANIMATION_DURATION);
-        fadeOutAnim.setStartDelay(IN_OUT_ANIMATION_DURATION - FADE_OUT_ANIMATION_DURATION);
-        fadeOutAnim.playTogether(ObjectAnimator.ofObject(bgImageView, "alpha", new FloatEvaluator(), 1f, 0f));
-        return fadeOutAnim;
-    }
-
-    private AnimatorSet getFgAnimatorSet(float alphaStart, float alphaEnd, float scaleStart, float scaleEnd, float xStart,
-            float xEnd, float yStart, float yEnd) {
-        AnimatorSet animSet = new AnimatorSet();
-        animSet.playTogether(ObjectAnimator.ofObject(detailsView, "alpha", new FloatEvaluator(), alphaStart, alphaEnd),//
-                ObjectAnimator.ofObject(detailsView, "x", new FloatEvaluator(), xStart, xEnd),//
-                ObjectAnimator.ofObject(detailsView, "y", new FloatEvaluator(), yStart, yEnd),//
-                ObjectAnimator.ofObject(detailsView, "scaleX", new FloatEvaluator(), scaleStart, scaleEnd),//
-                ObjectAnimator.ofObject(detailsView, "scaleY", new FloatEvaluator(), scaleStart, scaleEnd));
-        return animSet;
-    }
-
-    private AnimatorSet getBgAnimatorSet(Animator blurAnim, final ImageView bgImageView, float startTransY, float endTransY,
-            float startDarken, float endDarken) {
-
-        ValueAnimator darkenAnim = ValueAnimator.ofFloat(startDarken, endDarken);
-        AnimatorUpdateListener darkenUpdateListener = new AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(ValueAnimator va) {
-                float fraction = (Float) va.getAnimatedValue();
-                byte b = (byte) (fraction * 255);
-                int color = b + (b << 8) + (b << 16) + (0xff << 24);
-                bgImageView.setColorFilter(color, Mode.MULTIPLY);
+        }
+    }
+
+    // Remove the details view and the background once animated out, or when
+    // the animations are cancelled.
+    private void finishAnimateOut() {
+        if (state == STATE_HIDDEN) {
+            return;
+        }
+        stopLiveBlur();
+        endAnimationMetrics(state == STATE_OPENING);
+        state = STATE_HIDDEN;
+        setClickListener(contentRoot, null);
+        contentRoot.removeView(backgroundImageView);
+        contentRoot.removeView(detailsView);
+        backgroundImageView.setAlpha(1f);
+        backgroundImageView.setImageDrawable(null);
+        shownFrameDrawable = null;
+        if (backgroundBlurRenderer != null) {
+            backgroundBlurRenderer.end();
+        }
+        // The frames are kept for the next opening, rendered again from its
+        // capture.
+        if (frameCache != null) {
+            frameCache.invalidate();
+        }
+        inputBitmap = null;
+        // activity.getActionBar().show();
+        isShowingDetails.set(false);
+        // Catch up the blurred regions with changes made while shown.
+        scheduleBackgroundUpdate();
+    }
+
+    private void startLiveBlur() {
+        if (useLiveBlur) {
+            liveBlurRunning = true;
+            liveBlurStartNanos = System.nanoTime();
+            // Catch up with changes made while animating in.
+            scheduleBackgroundUpdate();
+        }
+    }
+
+    private void stopLiveBlur() {
+        if (liveBlurRunning) {
+            liveBlurRunning = false;
+            backgroundUpdateScheduled = false;
+            removeCallbacks(backgroundUpdateRunnable);
+            animationMetrics.recordLiveTime(System.nanoTime() - liveBlurStartNanos);
+        }
+    }
+
+    // Post a live blur or blurred region update, unless one is already
+    // posted, no sooner than one frame interval after the last one.
+    private void scheduleBackgroundUpdate() {
+        boolean updateRegions = !blurredRegions.isEmpty() && state == STATE_HIDDEN;
+        if ((!liveBlurRunning && !updateRegions) || backgroundUpdateScheduled) {
+            return;
+        }
+        backgroundUpdateScheduled = true;
+        long delay = lastBackgroundUpdateMillis + liveBlurFrameIntervalMillis - SystemClock.uptimeMillis();
+        postDelayed(backgroundUpdateRunnable, Math.max(0, delay));
+    }
+
+    /**
+     * Capture the background where it has changed and show it blurred again,
+     * as the last frame of the in animation.
+     */
+    private void updateLiveBackground() {
+        if (!liveBlurRunning) {
+            return;
+        }
+        lastBackgroundUpdateMillis = SystemClock.uptimeMillis();
+        if (backgroundBlurRenderer != null && !backgroundBlurRenderer.isIdle()) {
+            // The last frame of the in animation may still read the captured
+            // background, try again in a frame interval.
+            scheduleBackgroundUpdate();
+            return;
+        }
+        int width = getCaptureWidth();
+        int height = getCaptureHeight();
+        if (width != inputBitmap.getWidth() || height != inputBitmap.getHeight()) {
+            // Resized, the details view is placed for the old size as well.
+            return;
+        }
+        long cpuStart = Debug.threadCpuTimeNanos();
+        captureBackground(width, height);
+        takeChangeRect(keyframeChangeRect, inputBitmap, capturedChangeRect);
+        boolean changed = !capturedChangeRect.isEmpty();
+        if (changed) {
+            if (blurPyramid != null) {
+                // A live background is unlikely to be shown again, so it is
+                // not stored in the blur cache.
+                blurPyramid.setBlurCache(null);
+                updateBlurPyramid(getContext());
+            } else if (blurLadder != null) {
+                blurLadder.prepare(inputBitmap);
             }
-        };
-        darkenAnim.addUpdateListener(darkenUpdateListener);
-
-        // Get the offset from the top of the screen to the blurSourceView.
-        // int[] location = new int[2];
-        // getLocationOnScreen(location);
-        // final float backgroundInitialY = 0;//location[1];
-
-        AnimatorSet animSet = new AnimatorSet();
-        // if (backgroundInitialY != 0) {
-        // animSet.playTogether(blurAnim, darkenAnim, //
-        // ObjectAnimator.ofObject(bgImageView, "translationY", new
-        // FloatEvaluator(),
-        // backgroundInitialY + startTransY, backgroundInitialY + endTransY));
-        // } else {
-        animSet.playTogether(blurAnim, darkenAnim);
-        // }
-        return animSet;
-    }
-
-    private AnimatorListener getFinishAnimatorListener(final Activity activity, final ImageView backgroundImageView,
-            final ViewGroup root) {
-        return new AnimatorListener() {
-            @Override
-            public void onAnimationStart(Animator arg0) {
+            if (frameCache != null) {
+                frameCache.invalidate();
             }
+            initFrameEngines(getContext());
+            showFrame(1f);
+        }
+        animationMetrics.recordLiveUpdate(Debug.threadCpuTimeNanos() - cpuStart, changed);
+    }
 
-            @Override
-            public void onAnimationRepeat(Animator arg0) {
-            }
+    /**
+     * Blur the snapshot once where it has changed and show the part of it
+     * behind each blurred region. Not done while the details view is shown,
+     * as it covers the regions.
+     */
+    private void updateBlurredRegions() {
+        int width = getCaptureWidth();
+        int height = getCaptureHeight();
+        if (blurredRegions.isEmpty() || state != STATE_HIDDEN || width == 0 || height == 0) {
+            return;
+        }
+        lastBackgroundUpdateMillis = SystemClock.uptimeMillis();
+        Bitmap snapshot = captureBackground(width, height);
+        if (regionBitmap == null || regionBitmap.getWidth() != width || regionBitmap.getHeight() != height) {
+            bitmapPool.put(regionBitmap);
+            regionBitmap = bitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+            regionChangeRect.set(0, 0, width, height);
+        }
+        takeChangeRect(regionChangeRect, snapshot, capturedChangeRect);
+        boolean blurred = !capturedChangeRect.isEmpty();
+        if (blurred) {
+            initBlurEngine(getContext(), snapshot);
+            blurEngine.run(regionBitmap, snapshot, REGION_BLUR_RADIUS);
+        }
 
-            @Override
-            public void onAnimationEnd(Animator arg0) {
-                root.removeView(backgroundImageView);
-                root.removeView(detailsView);
-                backgroundImageView.setAlpha(1f);
-                // activity.getActionBar().show();
-                isShowingDetails.set(false);
+        getLocationInWindow(viewCoords);
+        invalidatingRegions = true;
+        for (View region : blurredRegions) {
+            Drawable background = region.getBackground();
+            if (!(background instanceof BlurredRegionDrawable)) {
+                // The background was replaced after the region was added.
+                continue;
             }
-
-            @Override
-            public void onAnimationCancel(Animator arg0) {
+            region.getLocationInWindow(regionCoords);
+            regionSourceRect.set((int) ((regionCoords[0] - viewCoords[0]) * BACKGROUND_SCALE_DOWN_FACTOR),
+                    (int) ((regionCoords[1] - viewCoords[1]) * BACKGROUND_SCALE_DOWN_FACTOR),
+                    (int) Math.ceil((regionCoords[0] - viewCoords[0] + region.getWidth()) * BACKGROUND_SCALE_DOWN_FACTOR),
+                    (int) Math.ceil((regionCoords[1] - viewCoords[1] + region.getHeight()) * BACKGROUND_SCALE_DOWN_FACTOR));
+            if (!regionSourceRect.intersect(0, 0, width, height)) {
+                regionSourceRect.setEmpty();
             }
-        };
+            ((BlurredRegionDrawable) background).setSource(regionBitmap, regionSourceRect, blurred);
+        }
+        invalidatingRegions = false;
+    }
+
+    // The size of the snapshot, this layout scaled down. The animations, live
+    // blur and the blurred regions all capture at this size, so switching
+    // between them does not reallocate and recapture the snapshot.
+    private int getCaptureWidth() {
+        return (int) (getWidth() * BACKGROUND_SCALE_DOWN_FACTOR);
+    }
+
+    private int getCaptureHeight() {
+        return (int) (getHeight() * BACKGROUND_SCALE_DOWN_FACTOR);
+    }
+
+    // Capture this layout into the shared snapshot where it has changed, and
+    // add the changes to the changes of the keyframes and of the regions.
+    private Bitmap captureBackground(int width, int height) {
+        capturingBackground = true;
+        Bitmap snapshot = backgroundCapture.capture(this, width, height, capturedChangeRect);
+        capturingBackground = false;
+        keyframeChangeRect.union(capturedChangeRect);
+        regionChangeRect.union(capturedChangeRect);
+        return snapshot;
+    }
+
+    // Move the collected changes into changedRect, within the snapshot.
+    private static void takeChangeRect(Rect collected, Bitmap snapshot, Rect changedRect) {
+        changedRect.set(collected);
+        collected.setEmpty();
+        if (!changedRect.intersect(0, 0, snapshot.getWidth(), snapshot.getHeight())) {
+            changedRect.setEmpty();
+        }
+    }
+
+    private void beginAnimationMetrics() {
+        animationStartMillis = SystemClock.uptimeMillis();
+        animationMetrics.beginAnimation();
+    }
+
+    private void endAnimationMetrics(boolean animatingIn) {
+        animationMetrics.endAnimation(animatingIn, SystemClock.uptimeMillis() - animationStartMillis, getRefreshRate());
+    }
+
+    private void initBlurEngine(Context context, Bitmap bitmap) {
+        if (blurEngine == null) {
+            blurEngine = new RenderscriptBlurEngine();
+            blurEngine.setMetrics(animationMetrics);
+            ownsBlurEngine = true;
+        }
+        try {
+            blurEngine.init(context, bitmap);
+        } catch (RSRuntimeException e) {
+            Log.w(LOG_TAG, "Failed to initialize renderscript, falling back to blurring on the CPU.", e);
+            releaseOwnedBlurEngine();
+            blurEngine = new CpuBlurEngine();
+            blurEngine.setMetrics(animationMetrics);
+            ownsBlurEngine = true;
+            blurEngine.init(context, bitmap);
+        }
+    }
+
+    private float getRefreshRate() {
+        Display display = getDisplay();
+        return display != null ? display.getRefreshRate() : DEFAULT_REFRESH_RATE;
+    }
+
+    private void releaseOwnedBlurEngine() {
+        if (ownsBlurEngine) {
+            blurEngine.release();
+            blurEngine = null;
+            ownsBlurEngine = false;
+        }
     }
 
     private void setClickListener(final ViewGroup root, final View.OnClickListener clickListener) {
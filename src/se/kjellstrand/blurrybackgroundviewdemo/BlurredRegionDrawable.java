@@ -0,0 +1,75 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * The background of a blurred region of a BlurredBackgroundLayout. Draws a
+ * part of the blurred background shared by all regions of the layout, the
+ * part behind the region, scaled up to the bounds of the drawable.
+ */
+public class BlurredRegionDrawable extends Drawable {
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // The shared blurred background, null until first blurred.
+    private Bitmap blurredBitmap = null;
+
+    // The part of blurredBitmap behind the region.
+    private final Rect sourceRect = new Rect();
+
+    /**
+     * Set the part of the blurred background to draw, redraws the region if
+     * it changed.
+     *
+     * @param blurredBitmap The shared blurred background.
+     * @param sourceRect The part of blurredBitmap behind the region.
+     * @param blurred If blurredBitmap has been blurred again since it was
+     *            last set.
+     */
+    public void setSource(Bitmap blurredBitmap, Rect sourceRect, boolean blurred) {
+        if (!blurred && blurredBitmap == this.blurredBitmap && sourceRect.equals(this.sourceRect)) {
+            return;
+        }
+        this.blurredBitmap = blurredBitmap;
+        this.sourceRect.set(sourceRect);
+        invalidateSelf();
+    }
+
+    /**
+     * Stop drawing the blurred background, when it is returned to the pool.
+     */
+    public void clearSource() {
+        blurredBitmap = null;
+        invalidateSelf();
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        if (blurredBitmap != null && !sourceRect.isEmpty()) {
+            canvas.drawBitmap(blurredBitmap, sourceRect, getBounds(), paint);
+        }
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        paint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        paint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
@@ -0,0 +1,372 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * A pure Java blur for ARGB_8888 pixels in PixelBuffers. The gaussian blur
+ * of ScriptIntrinsicBlur is approximated with three successive box blurs (for
+ * small radii the gaussian kernel is applied directly), separated into a row
+ * pass and a column pass. The rows and columns are split in bands that are
+ * blurred in parallel, one band per thread, by workers that are started once
+ * and then wait on a barrier between passes. All buffers are kept between
+ * calls so blurring images of an unchanged size does not allocate.
+ *
+ * Compared to the intrinsic (a gaussian with sigma = 0.4 * radius + 0.6) the
+ * output differs by about half a level per channel on average, by at most
+ * 1.5 levels on average for any of the demo drawables and radii 0 - 25, and
+ * by at most 20 levels at hard edges. GoldenImageHarness checks this.
+ */
+public class BoxBlur {
+
+    // Number of box blurs used to approximate a gaussian blur.
+    private static final int BOX_PASSES = 3;
+
+    // Below this radius three box blurs are a poor fit for the gaussian, so the
+    // gaussian kernel is applied directly instead.
+    private static final float MIN_BOX_BLUR_RADIUS = 2f;
+
+    // Number of bands the rows and columns are split into, one per thread.
+    private final int bandCount;
+
+    // Barrier the caller and the workers meet at between the passes, null if
+    // blurring is done on the calling thread only.
+    private final CyclicBarrier barrier;
+
+    // Per band line buffers used to hold one row or column while blurring it.
+    private final int[][] lineBuffersA;
+
+    private final int[][] lineBuffersB;
+
+    // The radii of the box blurs for the current blur.
+    private final int[] boxRadii = new int[BOX_PASSES];
+
+    // Fixed point gaussian weights used for small radii.
+    private final int[] kernel = new int[2 * (int) Math.ceil(MIN_BOX_BLUR_RADIUS) + 1];
+
+    // Radius of the kernel in use, 0 if box blurs are used.
+    private int kernelRadius;
+
+    // Holds the result of the row pass, input to the column pass.
+    private int[] scratch = new int[0];
+
+    private PixelBuffer src;
+
+    private PixelBuffer dst;
+
+    private int width;
+
+    private int height;
+
+    // Scale of the source in a fused blur, 1 for a plain blur.
+    private float sourceScale;
+
+    // Color the result of a fused blur is multiplied with, white for a plain
+    // blur.
+    private int multiplyColor;
+
+    private volatile boolean released = false;
+
+    /**
+     * Create a BoxBlur that uses one thread per available processor.
+     */
+    public BoxBlur() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a BoxBlur.
+     *
+     * @param threadCount Number of threads to blur with, including the calling
+     *            thread.
+     */
+    public BoxBlur(int threadCount) {
+        bandCount = Math.max(1, threadCount);
+        lineBuffersA = new int[bandCount][0];
+        lineBuffersB = new int[bandCount][0];
+        barrier = bandCount > 1 ? new CyclicBarrier(bandCount) : null;
+        for (int i = 1; i < bandCount; i++) {
+            final int band = i;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workLoop(band);
+                }
+            }, "BoxBlur-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Blur the pixels in src into dst.
+     *
+     * @param src The pixels to blur.
+     * @param dst Where to write the blurred pixels, same size as src and may
+     *            not share its array.
+     * @param radius The blur radius, same scale as for ScriptIntrinsicBlur.
+     */
+    public void blur(PixelBuffer src, PixelBuffer dst, float radius) {
+        blur(src, dst, radius, 1f, 0xffffffff);
+    }
+
+    /**
+     * Scale, blur and darken the pixels in src into dst in one go, the fused
+     * equivalent of PixelOps.scale, blur and PixelOps.multiply. The row pass
+     * samples the scaled source directly and the column pass multiplies the
+     * blurred pixels as they are written, so no separate passes over the image
+     * are needed for scaling and darkening.
+     *
+     * @param src The pixels to blur.
+     * @param dst Where to write the result, same size as src and may not
+     *            share its array.
+     * @param radius The blur radius, same scale as for ScriptIntrinsicBlur.
+     * @param scale Scale of src around its center, as in PixelOps.scale.
+     * @param multiplyColor Color to multiply the result with, as in
+     *            PixelOps.multiply. White leaves the result as it is.
+     */
+    public synchronized void blur(PixelBuffer src, PixelBuffer dst, float radius, float scale, int multiplyColor) {
+        if (released) {
+            throw new IllegalStateException("The blur has been released.");
+        }
+        PixelOps.checkSizes(src, dst);
+        if (src.sharesPixels(dst)) {
+            throw new IllegalArgumentException("A blur can not write to the pixels it reads.");
+        }
+        int width = src.getWidth();
+        int height = src.getHeight();
+        ensureBuffers(width, height);
+        if (radius < MIN_BOX_BLUR_RADIUS) {
+            kernelRadius = computeKernel(radius, kernel);
+        } else {
+            kernelRadius = 0;
+            computeBoxRadii(radius, boxRadii);
+        }
+        this.src = src;
+        this.dst = dst;
+        this.width = width;
+        this.height = height;
+        this.sourceScale = scale;
+        this.multiplyColor = multiplyColor;
+
+        await();
+        blurRows(0);
+        await();
+        blurColumns(0);
+        await();
+
+        this.src = null;
+        this.dst = null;
+    }
+
+    /**
+     * Stop the worker threads, the blur can not be used after this.
+     */
+    public synchronized void release() {
+        if (!released) {
+            released = true;
+            if (barrier == null || barrier.isBroken()) {
+                return;
+            }
+            // Let the waiting workers pass the barrier, see that the blur is
+            // released and exit.
+            await();
+        }
+    }
+
+    /**
+     * Calculates the radii of the box blurs that approximates a gaussian blur
+     * with the same sigma as ScriptIntrinsicBlur uses for radius.
+     */
+    static void computeBoxRadii(float radius, int[] boxRadii) {
+        int n = boxRadii.length;
+        double sigma = 0.4 * Math.max(radius, 0f) + 0.6;
+        double variance12 = 12 * sigma * sigma;
+        int lower = (int) Math.floor(Math.sqrt(variance12 / n + 1));
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+        long lowerCount = Math.round((variance12 - n * lower * lower - 4 * n * lower - 3 * n) / (-4.0 * lower - 4));
+        for (int i = 0; i < n; i++) {
+            boxRadii[i] = ((i < lowerCount ? lower : upper) - 1) / 2;
+        }
+    }
+
+    /**
+     * Calculates the gaussian weights ScriptIntrinsicBlur uses for radius, in
+     * 16 bit fixed point.
+     *
+     * @return The radius of the kernel.
+     */
+    static int computeKernel(float radius, int[] kernel) {
+        int kernelRadius = Math.max(1, (int) Math.ceil(radius));
+        double sigma = 0.4 * Math.max(radius, 0f) + 0.6;
+        double sum = 0;
+        for (int i = -kernelRadius; i <= kernelRadius; i++) {
+            sum += Math.exp(-i * i / (2 * sigma * sigma));
+        }
+        int total = 0;
+        for (int i = -kernelRadius; i <= kernelRadius; i++) {
+            kernel[i + kernelRadius] = (int) (65536 * Math.exp(-i * i / (2 * sigma * sigma)) / sum);
+            total += kernel[i + kernelRadius];
+        }
+        // Give the rounding error to the center weight so the weights sum up
+        // to exactly 1.
+        kernel[kernelRadius] += 65536 - total;
+        return kernelRadius;
+    }
+
+    /**
+     * Convolve one line of pixels with a symmetric kernel, pixels outside the
+     * line are clamped to the edge pixels.
+     */
+    static void convolveLine(int[] in, int[] out, int length, int[] kernel, int kernelRadius) {
+        int last = length - 1;
+        for (int i = 0; i < length; i++) {
+            int sumA = 32768;
+            int sumR = 32768;
+            int sumG = 32768;
+            int sumB = 32768;
+            for (int k = -kernelRadius; k <= kernelRadius; k++) {
+                int p = in[Math.min(Math.max(i + k, 0), last)];
+                int weight = kernel[k + kernelRadius];
+                sumA += (p >>> 24) * weight;
+                sumR += ((p >> 16) & 0xff) * weight;
+                sumG += ((p >> 8) & 0xff) * weight;
+                sumB += (p & 0xff) * weight;
+            }
+            out[i] = ((sumA >>> 16) << 24) | ((sumR >>> 16) << 16) | ((sumG >>> 16) << 8) | (sumB >>> 16);
+        }
+    }
+
+    /**
+     * Box blur one line of pixels, pixels outside the line are clamped to the
+     * edge pixels.
+     */
+    static void boxBlurLine(int[] in, int[] out, int length, int radius) {
+        int last = length - 1;
+        // Fixed point reciprocal of the box width, rounded down so that the
+        // rounded result never exceeds 255.
+        int mul = 65536 / (2 * radius + 1);
+        int sumA = 0;
+        int sumR = 0;
+        int sumG = 0;
+        int sumB = 0;
+        for (int i = -radius; i <= radius; i++) {
+            int p = in[Math.min(Math.max(i, 0), last)];
+            sumA += p >>> 24;
+            sumR += (p >> 16) & 0xff;
+            sumG += (p >> 8) & 0xff;
+            sumB += p & 0xff;
+        }
+        for (int i = 0; i < length; i++) {
+            out[i] = (((sumA * mul + 32768) >>> 16) << 24) | (((sumR * mul + 32768) >>> 16) << 16)
+                    | (((sumG * mul + 32768) >>> 16) << 8) | ((sumB * mul + 32768) >>> 16);
+            int pOut = in[Math.max(i - radius, 0)];
+            int pIn = in[Math.min(i + radius + 1, last)];
+            sumA += (pIn >>> 24) - (pOut >>> 24);
+            sumR += ((pIn >> 16) & 0xff) - ((pOut >> 16) & 0xff);
+            sumG += ((pIn >> 8) & 0xff) - ((pOut >> 8) & 0xff);
+            sumB += (pIn & 0xff) - (pOut & 0xff);
+        }
+    }
+
+    private void ensureBuffers(int width, int height) {
+        if (scratch.length < width * height) {
+            scratch = new int[width * height];
+        }
+        int lineLength = Math.max(width, height);
+        for (int i = 0; i < bandCount; i++) {
+            if (lineBuffersA[i].length < lineLength) {
+                lineBuffersA[i] = new int[lineLength];
+                lineBuffersB[i] = new int[lineLength];
+            }
+        }
+    }
+
+    private void workLoop(int band) {
+        try {
+            while (true) {
+                barrier.await();
+                if (released) {
+                    return;
+                }
+                blurRows(band);
+                barrier.await();
+                blurColumns(band);
+                barrier.await();
+            }
+        } catch (InterruptedException e) {
+            released = true;
+        } catch (BrokenBarrierException e) {
+            released = true;
+        }
+    }
+
+    private void await() {
+        if (barrier == null) {
+            return;
+        }
+        try {
+            barrier.await();
+        } catch (InterruptedException e) {
+            released = true;
+            barrier.reset();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while blurring.", e);
+        } catch (BrokenBarrierException e) {
+            released = true;
+            throw new IllegalStateException("A blur worker has stopped.", e);
+        }
+    }
+
+    private void blurRows(int band) {
+        int[] a = lineBuffersA[band];
+        int[] b = lineBuffersB[band];
+        int end = height * (band + 1) / bandCount;
+        for (int y = height * band / bandCount; y < end; y++) {
+            if (sourceScale == 1f) {
+                System.arraycopy(src.getPixels(), src.indexOf(0, y), a, 0, width);
+            } else {
+                PixelOps.scaleRow(src, sourceScale, y, a, 0);
+            }
+            blurLine(a, b, width);
+            System.arraycopy(b, 0, scratch, y * width, width);
+        }
+    }
+
+    private void blurColumns(int band) {
+        int[] a = lineBuffersA[band];
+        int[] b = lineBuffersB[band];
+        int[] dstPixels = dst.getPixels();
+        int dstStride = dst.getStride();
+        int end = width * (band + 1) / bandCount;
+        for (int x = width * band / bandCount; x < end; x++) {
+            for (int y = 0, i = x; y < height; y++, i += width) {
+                a[y] = scratch[i];
+            }
+            blurLine(a, b, height);
+            if (multiplyColor == 0xffffffff) {
+                for (int y = 0, i = dst.indexOf(x, 0); y < height; y++, i += dstStride) {
+                    dstPixels[i] = b[y];
+                }
+            } else {
+                for (int y = 0, i = dst.indexOf(x, 0); y < height; y++, i += dstStride) {
+                    dstPixels[i] = PixelOps.multiply(b[y], multiplyColor);
+                }
+            }
+        }
+    }
+
+    // Blurs the line in a into b, a is used as scratch space.
+    private void blurLine(int[] a, int[] b, int length) {
+        if (kernelRadius > 0) {
+            convolveLine(a, b, length, kernel, kernelRadius);
+        } else {
+            boxBlurLine(a, b, length, boxRadii[0]);
+            boxBlurLine(b, a, length, boxRadii[1]);
+            boxBlurLine(a, b, length, boxRadii[2]);
+        }
+    }
+}
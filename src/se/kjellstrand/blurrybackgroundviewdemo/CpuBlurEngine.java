@@ -0,0 +1,116 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+/**
+ * A BlurEngine that blurs on the CPU with BoxBlur, for devices where
+ * RenderScript is slow or broken. The pixel buffers are kept between frames
+ * for the last few bitmap sizes, so switching between the sizes of the levels
+ * of a BlurLadder does not allocate. run uses the buffers of the size of its
+ * input, so an engine initialized for every level can blur any of them.
+ */
+public class CpuBlurEngine implements BlurEngine {
+
+    // Max number of bitmap sizes to keep pixel buffers for, one per level of
+    // a BlurLadder.
+    private static final int MAX_CACHED_BUFFER_SIZES = 4;
+
+    private final BoxBlur boxBlur = new BoxBlur();
+
+    // The input and output buffers of recently used sizes, most recently used
+    // first, null where no size has been used.
+    private final PixelBuffer[] cachedInputPixels = new PixelBuffer[MAX_CACHED_BUFFER_SIZES];
+
+    private final PixelBuffer[] cachedOutputPixels = new PixelBuffer[MAX_CACHED_BUFFER_SIZES];
+
+    private PixelBuffer inputPixels = new PixelBuffer(0, 0);
+
+    private PixelBuffer outputPixels = new PixelBuffer(0, 0);
+
+    private volatile BackgroundAnimationMetrics metrics = null;
+
+    @Override
+    public void init(Context context, Bitmap inputBitmap) {
+        useBuffers(inputBitmap.getWidth(), inputBitmap.getHeight());
+    }
+
+    @Override
+    public void run(Bitmap outputBitmap, Bitmap inputBitmap, float blurStrength) {
+        useBuffers(inputBitmap.getWidth(), inputBitmap.getHeight());
+        long copyInStart = System.nanoTime();
+        BitmapPixels.read(inputBitmap, inputPixels);
+        long copyInNanos = System.nanoTime() - copyInStart;
+        boxBlur.blur(inputPixels, outputPixels, blurStrength);
+        copyOut(outputBitmap, copyInNanos);
+    }
+
+    /**
+     * Scale, blur and darken inputBitmap into outputBitmap in one fused pass
+     * over the pixels, instead of drawing the scaled input into a temporary
+     * bitmap, blurring it and darkening it with a color filter when drawn.
+     *
+     * @param outputBitmap The bitmap to write the result to, same size as
+     *            inputBitmap.
+     * @param inputBitmap The bitmap to scale, blur and darken.
+     * @param scale Scale of the input around its center.
+     * @param blurStrength The blur radius (0 - 25).
+     * @param multiplyColor Color to multiply the result with, as a
+     *            PorterDuff.Mode.MULTIPLY color filter does. White leaves the
+     *            result as it is.
+     */
+    public void runFused(Bitmap outputBitmap, Bitmap inputBitmap, float scale, float blurStrength, int multiplyColor) {
+        useBuffers(inputBitmap.getWidth(), inputBitmap.getHeight());
+        long copyInStart = System.nanoTime();
+        BitmapPixels.read(inputBitmap, inputPixels);
+        long copyInNanos = System.nanoTime() - copyInStart;
+        boxBlur.blur(inputPixels, outputPixels, blurStrength, scale, multiplyColor);
+        copyOut(outputBitmap, copyInNanos);
+    }
+
+    @Override
+    public void setMetrics(BackgroundAnimationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void release() {
+        boxBlur.release();
+    }
+
+    // Copy the blurred pixels to outputBitmap and record the time spent
+    // copying.
+    private void copyOut(Bitmap outputBitmap, long copyInNanos) {
+        long copyOutStart = System.nanoTime();
+        BitmapPixels.write(outputPixels, outputBitmap);
+        BackgroundAnimationMetrics m = metrics;
+        if (m != null) {
+            m.recordCopy(copyInNanos + System.nanoTime() - copyOutStart);
+        }
+    }
+
+    // Switch to the buffers of a size, allocated unless the size is one of
+    // the cached sizes.
+    private void useBuffers(int width, int height) {
+        if (inputPixels.getWidth() == width && inputPixels.getHeight() == height) {
+            return;
+        }
+        int index = 0;
+        while (index < MAX_CACHED_BUFFER_SIZES - 1 && cachedInputPixels[index] != null
+                && (cachedInputPixels[index].getWidth() != width || cachedInputPixels[index].getHeight() != height)) {
+            index++;
+        }
+        inputPixels = cachedInputPixels[index];
+        outputPixels = cachedOutputPixels[index];
+        if (inputPixels == null || inputPixels.getWidth() != width || inputPixels.getHeight() != height) {
+            // Not cached, the least recently used size is dropped.
+            inputPixels = new PixelBuffer(width, height);
+            outputPixels = new PixelBuffer(width, height);
+        }
+        // Move the size first.
+        System.arraycopy(cachedInputPixels, 0, cachedInputPixels, 1, index);
+        System.arraycopy(cachedOutputPixels, 0, cachedOutputPixels, 1, index);
+        cachedInputPixels[0] = inputPixels;
+        cachedOutputPixels[0] = outputPixels;
+    }
+}
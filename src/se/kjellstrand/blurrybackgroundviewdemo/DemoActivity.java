@@ -4,22 +4,32 @@ package se.kjellstrand.blurrybackgroundviewdemo;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
 import android.view.View;
-import android.view.View.OnClickListener;
-import android.widget.GridLayout;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.GridView;
 import android.widget.ImageView;
 
 public class DemoActivity extends Activity {
 
     private AtomicBoolean isShowingDetails = new AtomicBoolean(false);
 
+    // The grid images decoded at the size of a grid cell, shared by the grid
+    // and the details view.
+    private ThumbnailCache thumbnailCache;
+
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         View view = View.inflate(this, R.layout.activity_demo, null);
 
-        GridLayout gl = (GridLayout) view.findViewById(R.id.grid_layout);
+        GridView gridView = (GridView) view.findViewById(R.id.grid_view);
+
+        thumbnailCache = new ThumbnailCache(getResources());
+        final int cellSize = getResources().getDimensionPixelSize(R.dimen.grid_cell_size);
 
         int[] images = new int[] {
                 R.drawable._1, R.drawable._2, R.drawable._14, R.drawable._15, R.drawable._16, R.drawable._17, R.drawable._3,
@@ -32,26 +42,39 @@ public class DemoActivity extends Activity {
                 R.drawable._3, R.drawable._4, R.drawable._17, R.drawable._11, R.drawable._12, R.drawable._13, R.drawable._18,
                 R.drawable._19
         };
-        for (final int id : images) {
-            View imageView = new ImageView(this);
-            imageView.setBackgroundResource(id);
-            imageView.setOnClickListener(new OnClickListener() {
-                @Override
-                public void onClick(View view) {
-                    BlurredBackgroundLayout bluredBackgroundLayout = (BlurredBackgroundLayout) findViewById(R.id.launch_parent);
-                    View detailsView = getLayoutInflater().inflate(R.layout.details_view, bluredBackgroundLayout, false);
-                    ((ImageView) detailsView.findViewById(R.id.image_view)).setBackgroundResource(id);
-                    bluredBackgroundLayout.setInnerView(DemoActivity.this, detailsView, view);
-                    bluredBackgroundLayout.runAnimations(DemoActivity.this, isShowingDetails);
+        final ImageGridAdapter adapter = new ImageGridAdapter(this, images, thumbnailCache, cellSize);
+        gridView.setAdapter(adapter);
+        gridView.setOnItemClickListener(new OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long itemId) {
+                if (isShowingDetails.get()) {
+                    return;
                 }
-            });
-            gl.addView(imageView);
-        }
+                int id = adapter.getImageId(position);
+                BlurredBackgroundLayout bluredBackgroundLayout = (BlurredBackgroundLayout) findViewById(R.id.launch_parent);
+                View detailsView = getLayoutInflater().inflate(R.layout.details_view, bluredBackgroundLayout, false);
+                ImageView detailsImageView = (ImageView) detailsView.findViewById(R.id.image_view);
+                Bitmap bitmap = thumbnailCache.get(id, cellSize, cellSize);
+                if (bitmap != null) {
+                    detailsImageView.setBackground(new BitmapDrawable(getResources(), bitmap));
+                } else {
+                    detailsImageView.setBackgroundResource(id);
+                }
+                bluredBackgroundLayout.setInnerView(DemoActivity.this, detailsView, view);
+                bluredBackgroundLayout.runAnimations(DemoActivity.this, isShowingDetails);
+            }
+        });
 
         setContentView(view);
 
     }
 
+    @Override
+    protected void onDestroy() {
+        thumbnailCache.quit();
+        super.onDestroy();
+    }
+
     @Override
     public void onBackPressed() {
         if (isShowingDetails.get()) {
@@ -0,0 +1,74 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+
+/**
+ * Adapter for a grid of drawable resources. Only the visible cells have views,
+ * views of cells scrolled out of sight are reused for the cells scrolled into
+ * sight, and the images are loaded through a ThumbnailCache.
+ */
+public class ImageGridAdapter extends BaseAdapter {
+
+    private final Context context;
+
+    private final int[] imageIds;
+
+    private final ThumbnailCache thumbnailCache;
+
+    private final int cellSize;
+
+    /**
+     * Create an adapter.
+     *
+     * @param context A context.
+     * @param imageIds The drawable resources to show, one per cell.
+     * @param thumbnailCache Cache to load the images through.
+     * @param cellSize Width and height of a cell.
+     */
+    public ImageGridAdapter(Context context, int[] imageIds, ThumbnailCache thumbnailCache, int cellSize) {
+        this.context = context;
+        this.imageIds = imageIds;
+        this.thumbnailCache = thumbnailCache;
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * @param position A position in the grid.
+     * @return The drawable resource shown at position.
+     */
+    public int getImageId(int position) {
+        return imageIds[position];
+    }
+
+    @Override
+    public int getCount() {
+        return imageIds.length;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return Integer.valueOf(imageIds[position]);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ImageView imageView = (ImageView) convertView;
+        if (imageView == null) {
+            imageView = new ImageView(context);
+            imageView.setScaleType(ImageView.ScaleType.FIT_XY);
+            imageView.setLayoutParams(new AbsListView.LayoutParams(cellSize, cellSize));
+        }
+        thumbnailCache.load(imageView, imageIds[position], cellSize, cellSize);
+        return imageView;
+    }
+}
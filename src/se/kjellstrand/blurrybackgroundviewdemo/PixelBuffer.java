@@ -0,0 +1,128 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+/**
+ * A rectangle of ARGB_8888 pixels in an int array, laid out like the pixels
+ * of Bitmap.getPixels: the pixel at (x, y) is at offset + y * stride + x.
+ * Buffers can be views of a part of another buffer, sharing its array, so
+ * that stages working on the same pixels do not need to copy them.
+ */
+public class PixelBuffer {
+
+    private final int[] pixels;
+
+    private final int offset;
+
+    private final int stride;
+
+    private final int width;
+
+    private final int height;
+
+    /**
+     * Create a buffer with an array of its own.
+     *
+     * @param width Width of the buffer.
+     * @param height Height of the buffer.
+     */
+    public PixelBuffer(int width, int height) {
+        this(new int[width * height], 0, width, width, height);
+    }
+
+    /**
+     * Create a buffer of pixels in an existing array.
+     *
+     * @param pixels The array holding the pixels.
+     * @param offset Index of the top left pixel.
+     * @param stride Distance between the start of two rows, at least width.
+     * @param width Width of the buffer.
+     * @param height Height of the buffer.
+     */
+    public PixelBuffer(int[] pixels, int offset, int stride, int width, int height) {
+        if (width < 0 || height < 0 || stride < width || offset < 0
+                || (height > 0 && offset + (long) (height - 1) * stride + width > pixels.length)) {
+            throw new IllegalArgumentException("Bad layout for a " + width + "x" + height + " pixel buffer.");
+        }
+        this.pixels = pixels;
+        this.offset = offset;
+        this.stride = stride;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Get a view of a part of this buffer, sharing the pixels.
+     *
+     * @param x Left edge of the part.
+     * @param y Top edge of the part.
+     * @param regionWidth Width of the part.
+     * @param regionHeight Height of the part.
+     * @return The view.
+     */
+    public PixelBuffer region(int x, int y, int regionWidth, int regionHeight) {
+        if (x < 0 || y < 0 || regionWidth < 0 || regionHeight < 0 || x + regionWidth > width
+                || y + regionHeight > height) {
+            throw new IllegalArgumentException("Region outside of the " + width + "x" + height + " pixel buffer.");
+        }
+        return new PixelBuffer(pixels, offset + y * stride + x, stride, regionWidth, regionHeight);
+    }
+
+    /**
+     * @return The array holding the pixels, shared with the buffer.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return Index of the top left pixel in the array.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return Distance between the start of two rows in the array.
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return Index of the pixel at (x, y) in the array.
+     */
+    public int indexOf(int x, int y) {
+        return offset + y * stride + x;
+    }
+
+    public int get(int x, int y) {
+        return pixels[offset + y * stride + x];
+    }
+
+    public void set(int x, int y, int pixel) {
+        pixels[offset + y * stride + x] = pixel;
+    }
+
+    /**
+     * @param other Another buffer.
+     * @return If the buffers have the same width and height.
+     */
+    public boolean hasSameSize(PixelBuffer other) {
+        return width == other.width && height == other.height;
+    }
+
+    /**
+     * @param other Another buffer.
+     * @return If the buffers share their array, and so may overlap.
+     */
+    public boolean sharesPixels(PixelBuffer other) {
+        return pixels == other.pixels;
+    }
+}
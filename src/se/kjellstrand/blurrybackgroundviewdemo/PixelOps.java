@@ -0,0 +1,206 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+/**
+ * Pure Java versions of the per-frame pixel stages of BlurredBackgroundLayout,
+ * working on PixelBuffers. They do the same as the Canvas and ColorFilter calls
+ * of the layout so that the stages can be run and measured on a plain JVM.
+ */
+public class PixelOps {
+
+    private PixelOps() {
+    }
+
+    /**
+     * Clear dst to opaque black and draw src scaled around its center into it,
+     * sampled like an unfiltered Canvas.drawBitmap.
+     *
+     * @param src The pixels to draw.
+     * @param dst The pixels to draw to, same size as src and not overlapping
+     *            it.
+     * @param scale The scale, pivoted at (width / 2, height / 2).
+     */
+    public static void scale(PixelBuffer src, PixelBuffer dst, float scale) {
+        checkSizes(src, dst);
+        int[] dstPixels = dst.getPixels();
+        for (int y = 0; y < dst.getHeight(); y++) {
+            scaleRow(src, scale, y, dstPixels, dst.indexOf(0, y));
+        }
+    }
+
+    /**
+     * Sample one row of src scaled around its center, as drawn by scale.
+     *
+     * @param src The pixels to sample.
+     * @param scale The scale, pivoted at (width / 2, height / 2).
+     * @param y The row to sample.
+     * @param dst Where to write the row.
+     * @param offset Offset in dst to write the row at.
+     */
+    public static void scaleRow(PixelBuffer src, float scale, int y, int[] dst, int offset) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int pivotX = width / 2;
+        int pivotY = height / 2;
+        float inverseScale = 1f / scale;
+        int srcY = (int) Math.floor((y + 0.5f - pivotY) * inverseScale + pivotY);
+        if (srcY < 0 || srcY >= height) {
+            for (int x = 0; x < width; x++) {
+                dst[offset + x] = 0xff000000;
+            }
+            return;
+        }
+        int[] srcPixels = src.getPixels();
+        int srcOffset = src.indexOf(0, srcY);
+        for (int x = 0; x < width; x++) {
+            int srcX = (int) Math.floor((x + 0.5f - pivotX) * inverseScale + pivotX);
+            dst[offset + x] = srcX < 0 || srcX >= width ? 0xff000000 : srcPixels[srcOffset + srcX];
+        }
+    }
+
+    /**
+     * Clear dst to opaque black and draw src scaled around its center into it,
+     * sampled bilinearly like a filtered Canvas.drawBitmap. BlurLadder draws
+     * the mips above level 0 this way.
+     *
+     * @param src The pixels to draw.
+     * @param dst The pixels to draw to, same size as src and not overlapping
+     *            it.
+     * @param scale The scale, pivoted at (width / 2, height / 2).
+     */
+    public static void scaleFiltered(PixelBuffer src, PixelBuffer dst, float scale) {
+        checkSizes(src, dst);
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int pivotX = width / 2;
+        int pivotY = height / 2;
+        float inverseScale = 1f / scale;
+        for (int y = 0; y < height; y++) {
+            float srcY = (y + 0.5f - pivotY) * inverseScale + pivotY;
+            int i = dst.indexOf(0, y);
+            for (int x = 0; x < width; x++, i++) {
+                float srcX = (x + 0.5f - pivotX) * inverseScale + pivotX;
+                dst.getPixels()[i] = srcX < 0 || srcX >= width || srcY < 0 || srcY >= height ? 0xff000000
+                        : sample(src, srcX - 0.5f, srcY - 0.5f);
+            }
+        }
+    }
+
+    /**
+     * Draw src stretched over all of dst, sampled bilinearly like a filtered
+     * Canvas.drawBitmap. BlurLadder downsamples the mips 2x and upsamples the
+     * blurred mips this way.
+     *
+     * @param src The pixels to draw.
+     * @param dst The pixels to draw to, not overlapping src.
+     */
+    public static void resize(PixelBuffer src, PixelBuffer dst) {
+        float scaleX = (float) src.getWidth() / dst.getWidth();
+        float scaleY = (float) src.getHeight() / dst.getHeight();
+        for (int y = 0; y < dst.getHeight(); y++) {
+            int i = dst.indexOf(0, y);
+            for (int x = 0; x < dst.getWidth(); x++, i++) {
+                dst.getPixels()[i] = sample(src, (x + 0.5f) * scaleX - 0.5f, (y + 0.5f) * scaleY - 0.5f);
+            }
+        }
+    }
+
+    // Sample src bilinearly at (x, y), in pixel indices, clamped to its edges.
+    private static int sample(PixelBuffer src, float x, float y) {
+        float clampedX = Math.max(0f, Math.min(src.getWidth() - 1f, x));
+        float clampedY = Math.max(0f, Math.min(src.getHeight() - 1f, y));
+        int x0 = (int) clampedX;
+        int y0 = (int) clampedY;
+        int x1 = Math.min(src.getWidth() - 1, x0 + 1);
+        int y1 = Math.min(src.getHeight() - 1, y0 + 1);
+        int wx = (int) ((clampedX - x0) * 256);
+        int wy = (int) ((clampedY - y0) * 256);
+        int top = lerp(src.get(x0, y0), src.get(x1, y0), wx);
+        int bottom = lerp(src.get(x0, y1), src.get(x1, y1), wx);
+        return lerp(top, bottom, wy);
+    }
+
+    // Blend two pixels, weight 0 - 256 of b.
+    private static int lerp(int a, int b, int weight) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int ca = (a >>> shift) & 0xff;
+            int cb = (b >>> shift) & 0xff;
+            result |= ((ca * (256 - weight) + cb * weight + 128) >> 8) << shift;
+        }
+        return result;
+    }
+
+    /**
+     * The color BlurredBackgroundLayout multiplies the background with to
+     * darken it, computed the same way as the layout does.
+     *
+     * @param fraction The darken fraction, 1 leaves the background as it is.
+     * @return The color to multiply with.
+     */
+    public static int darkenColor(float fraction) {
+        byte b = (byte) (fraction * 255);
+        return b + (b << 8) + (b << 16) + (0xff << 24);
+    }
+
+    /**
+     * Multiply pixels with a color like a PorterDuff.Mode.MULTIPLY color
+     * filter does.
+     *
+     * @param buffer The pixels to multiply, in place.
+     * @param color The color to multiply with.
+     */
+    public static void multiply(PixelBuffer buffer, int color) {
+        int[] pixels = buffer.getPixels();
+        for (int y = 0; y < buffer.getHeight(); y++) {
+            for (int i = buffer.indexOf(0, y), end = i + buffer.getWidth(); i < end; i++) {
+                pixels[i] = multiply(pixels[i], color);
+            }
+        }
+    }
+
+    /**
+     * Multiply a pixel with a color like a PorterDuff.Mode.MULTIPLY color
+     * filter does.
+     *
+     * @param pixel The pixel.
+     * @param color The color to multiply with.
+     * @return The multiplied pixel.
+     */
+    public static int multiply(int pixel, int color) {
+        return (div255((pixel >>> 24) * (color >>> 24)) << 24)
+                | (div255(((pixel >> 16) & 0xff) * ((color >> 16) & 0xff)) << 16)
+                | (div255(((pixel >> 8) & 0xff) * ((color >> 8) & 0xff)) << 8)
+                | div255((pixel & 0xff) * (color & 0xff));
+    }
+
+    /**
+     * Copy pixels, the Allocation.copyTo of the blur.
+     *
+     * @param src The pixels to copy.
+     * @param dst Where to copy them, same size as src.
+     */
+    public static void copy(PixelBuffer src, PixelBuffer dst) {
+        checkSizes(src, dst);
+        if (src.getStride() == src.getWidth() && dst.getStride() == dst.getWidth()) {
+            System.arraycopy(src.getPixels(), src.getOffset(), dst.getPixels(), dst.getOffset(),
+                    src.getWidth() * src.getHeight());
+            return;
+        }
+        for (int y = 0; y < src.getHeight(); y++) {
+            System.arraycopy(src.getPixels(), src.indexOf(0, y), dst.getPixels(), dst.indexOf(0, y), src.getWidth());
+        }
+    }
+
+    static void checkSizes(PixelBuffer a, PixelBuffer b) {
+        if (!a.hasSameSize(b)) {
+            throw new IllegalArgumentException("Pixel buffers of different sizes, " + a.getWidth() + "x"
+                    + a.getHeight() + " and " + b.getWidth() + "x" + b.getHeight() + ".");
+        }
+    }
+
+    // Rounded division by 255 of a product of two 8 bit values.
+    static int div255(int value) {
+        int t = value + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+}
@@ -0,0 +1,104 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.renderscript.RSRuntimeException;
+import android.util.Log;
+
+/**
+ * A BlurEngine that blurs with ScriptIntrinsicBlur through a
+ * RenderscriptHelper of its own, created on the first init and kept until the
+ * engine is released. init prepares the blur script and allocations of the
+ * calling thread, so a failure there can be handled by the caller. Other
+ * threads prepare theirs on their first run, and if that fails the engine
+ * falls back to blurring on the CPU.
+ */
+public class RenderscriptBlurEngine implements BlurEngine {
+    private static final String LOG_TAG = RenderscriptBlurEngine.class.getCanonicalName();
+
+    private volatile RenderscriptHelper renderscriptHelper = null;
+
+    // Blurs instead of renderscriptHelper once a run has failed, null until
+    // then.
+    private volatile CpuBlurEngine fallbackEngine = null;
+
+    private volatile BackgroundAnimationMetrics metrics = null;
+
+    @Override
+    public void init(Context context, Bitmap inputBitmap) {
+        if (renderscriptHelper == null) {
+            synchronized (this) {
+                if (renderscriptHelper == null) {
+                    RenderscriptHelper helper = new RenderscriptHelper(context);
+                    helper.setMetrics(metrics);
+                    if (metrics != null) {
+                        metrics.recordContextInitialization();
+                    }
+                    renderscriptHelper = helper;
+                }
+            }
+        }
+        CpuBlurEngine fallback = fallbackEngine;
+        if (fallback != null) {
+            synchronized (fallback) {
+                fallback.init(context, inputBitmap);
+            }
+        } else {
+            renderscriptHelper.prepare(inputBitmap);
+        }
+    }
+
+    @Override
+    public void run(Bitmap outputBitmap, Bitmap inputBitmap, float blurStrength) {
+        RenderscriptHelper helper = renderscriptHelper;
+        if (helper == null) {
+            throw new IllegalStateException("The blur engine is released or not initialized.");
+        }
+        CpuBlurEngine fallback = fallbackEngine;
+        if (fallback == null) {
+            try {
+                helper.run(outputBitmap, inputBitmap, blurStrength);
+                return;
+            } catch (RSRuntimeException e) {
+                Log.w(LOG_TAG, "Failed to blur with renderscript, falling back to blurring on the CPU.", e);
+                fallback = getFallbackEngine();
+            }
+        }
+        synchronized (fallback) {
+            fallback.init(null, inputBitmap);
+            fallback.run(outputBitmap, inputBitmap, blurStrength);
+        }
+    }
+
+    @Override
+    public synchronized void setMetrics(BackgroundAnimationMetrics metrics) {
+        this.metrics = metrics;
+        if (renderscriptHelper != null) {
+            renderscriptHelper.setMetrics(metrics);
+        }
+        if (fallbackEngine != null) {
+            fallbackEngine.setMetrics(metrics);
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        if (renderscriptHelper != null) {
+            renderscriptHelper.release();
+            renderscriptHelper = null;
+        }
+        if (fallbackEngine != null) {
+            fallbackEngine.release();
+            fallbackEngine = null;
+        }
+    }
+
+    private synchronized CpuBlurEngine getFallbackEngine() {
+        if (fallbackEngine == null) {
+            CpuBlurEngine fallback = new CpuBlurEngine();
+            fallback.setMetrics(metrics);
+            fallbackEngine = fallback;
+        }
+        return fallbackEngine;
+    }
+}
@@ -1,55 +1,199 @@
-
 package se.kjellstrand.blurrybackgroundviewdemo;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.RenderScript;
+import android.renderscript.RSRuntimeException;
 import android.renderscript.ScriptIntrinsicBlur;
 import android.util.Log;
 
+/**
+ * A RenderScript blur context. Several contexts can be used at the same time,
+ * for example one per BlurredBackgroundLayout, and a context can be used to
+ * blur from several threads at once. Each thread gets its own blur script and
+ * its own allocations, cached per bitmap size, so concurrent runs do not share
+ * any mutable state and do not lock.
+ */
 public class RenderscriptHelper {
     private static final String LOG_TAG = RenderscriptHelper.class.getCanonicalName();
 
-    private static RenderScript rs = null;
+    // Max number of bitmap sizes to keep blur allocations for, per thread.
+    private static final int MAX_CACHED_ALLOCATION_SIZES = 4;
+
+    private final RenderScript rs;
+
+    // The blur state of each thread that has used this context.
+    private final ThreadLocal<ThreadBlurState> threadBlurState = new ThreadLocal<ThreadBlurState>() {
+        @Override
+        protected ThreadBlurState initialValue() {
+            ThreadBlurState state = new ThreadBlurState();
+            threadBlurStates.add(state);
+            return state;
+        }
+    };
+
+    // All thread blur states, so that they can be destroyed on release.
+    private final CopyOnWriteArrayList<ThreadBlurState> threadBlurStates = new CopyOnWriteArrayList<ThreadBlurState>();
 
-    private static Allocation blurInputAllocation = null;
+    private volatile boolean released = false;
 
-    private static Allocation blurOutputAllocation = null;
+    // Where the time spent copying bitmaps in and out of the allocations is
+    // recorded, null if not recorded.
+    private volatile BackgroundAnimationMetrics metrics = null;
+
+    /**
+     * Create a blur context, this is an expensive operation.
+     *
+     * @param context A context.
+     */
+    public RenderscriptHelper(Context context) {
+        Log.d(LOG_TAG,
+                "Initializing renderscript, should not be seen often in the log since its an expensive operation.");
+        rs = RenderScript.create(context.getApplicationContext());
+    }
 
-    private static ScriptIntrinsicBlur blurScript = null;
+    /**
+     * @param metrics Where to record the time spent copying bitmaps in and
+     *            out of the allocations, or null to not record.
+     */
+    public void setMetrics(BackgroundAnimationMetrics metrics) {
+        this.metrics = metrics;
+    }
 
-    private static int currentBlurBitmapHeight = -1;
+    /**
+     * Create the blur script of the calling thread and its allocations for
+     * the size of inputBitmap, if not already created, so that a run of that
+     * size on this thread creates nothing.
+     *
+     * @param inputBitmap A bitmap of the size that will be blurred.
+     * @throws RSRuntimeException If the script or the allocations could not
+     *             be created.
+     */
+    public void prepare(Bitmap inputBitmap) {
+        if (released) {
+            throw new IllegalStateException("The renderscript context has been released.");
+        }
+        threadBlurState.get().prepare(inputBitmap);
+    }
 
-    private static int currentBlurBitmapWidth = -1;
+    /**
+     * Blur inputBitmap into outputBitmap, may be called from any thread. The
+     * blur script and allocations of a thread that has not been prepared for
+     * the size are created first.
+     *
+     * @param outputBitmap The bitmap to write the blurred pixels to, same size
+     *            as inputBitmap.
+     * @param inputBitmap The bitmap to blur.
+     * @param blurStrength The blur radius (0 - 25).
+     * @throws RSRuntimeException If the script or the allocations could not
+     *             be created, or the blur failed.
+     */
+    public void run(Bitmap outputBitmap, Bitmap inputBitmap, float blurStrength) {
+        if (released) {
+            throw new IllegalStateException("The renderscript context has been released.");
+        }
+        ThreadBlurState state = threadBlurState.get();
+        state.prepare(inputBitmap);
+        long copyInStart = System.nanoTime();
+        state.inputAllocation.copyFrom(inputBitmap);
+        long copyInNanos = System.nanoTime() - copyInStart;
+        state.blurScript.setRadius((blurStrength == 0) ? 0.0001f : blurStrength);
+        state.blurScript.setInput(state.inputAllocation);
+        state.blurScript.forEach(state.outputAllocation);
+        long copyOutStart = System.nanoTime();
+        state.outputAllocation.copyTo(outputBitmap);
+        BackgroundAnimationMetrics m = metrics;
+        if (m != null) {
+            m.recordCopy(copyInNanos + System.nanoTime() - copyOutStart);
+        }
+    }
 
-    public static void init(Context context, Bitmap inputBitmap) {
-        if (inputBitmap.getHeight() != currentBlurBitmapHeight
-                || inputBitmap.getWidth() != currentBlurBitmapWidth) {
-            Log.d(LOG_TAG,
-                    "Initializing renderscript, should not be seen often in the log since its an expensive operation.");
-            if (rs != null) {
-                rs.destroy();
-                blurInputAllocation.destroy();
-                blurOutputAllocation.destroy();
+    /**
+     * Destroy the context and all its scripts and allocations. Must not be
+     * called while a run is in progress, the context can not be used after
+     * this.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        for (ThreadBlurState state : threadBlurStates) {
+            state.destroy();
+        }
+        threadBlurStates.clear();
+        rs.destroy();
+    }
+
+    /**
+     * The blur script and allocations used by one thread.
+     */
+    private class ThreadBlurState {
+
+        private final ScriptIntrinsicBlur blurScript = ScriptIntrinsicBlur.create(rs, Element.U8_4(rs));
+
+        // The input and output allocations for recently used bitmap sizes,
+        // least recently used first. Evicted allocations are destroyed.
+        private final LinkedHashMap<Long, Allocation[]> allocationCache = new LinkedHashMap<Long, Allocation[]>(
+                MAX_CACHED_ALLOCATION_SIZES, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Allocation[]> eldest) {
+                if (size() > MAX_CACHED_ALLOCATION_SIZES) {
+                    destroyAllocations(eldest.getValue());
+                    return true;
+                }
+                return false;
             }
-            rs = RenderScript.create(context);
-            blurInputAllocation = Allocation.createFromBitmap(rs, inputBitmap,
-                    Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
-            blurOutputAllocation = Allocation.createTyped(rs, blurInputAllocation.getType());
-            blurScript = ScriptIntrinsicBlur.create(rs, Element.U8_4(rs));
+        };
+
+        private Allocation inputAllocation = null;
+
+        private Allocation outputAllocation = null;
+
+        private int currentBlurBitmapHeight = -1;
 
-            currentBlurBitmapHeight = inputBitmap.getHeight();
-            currentBlurBitmapWidth = inputBitmap.getWidth();
+        private int currentBlurBitmapWidth = -1;
+
+        private void prepare(Bitmap inputBitmap) {
+            if (inputBitmap.getHeight() != currentBlurBitmapHeight || inputBitmap.getWidth() != currentBlurBitmapWidth) {
+                Long key = Long.valueOf(((long) inputBitmap.getWidth() << 32) | inputBitmap.getHeight());
+                Allocation[] allocations = allocationCache.get(key);
+                if (allocations == null) {
+                    Allocation input = Allocation.createFromBitmap(rs, inputBitmap,
+                            Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
+                    allocations = new Allocation[] {
+                            input, Allocation.createTyped(rs, input.getType())
+                    };
+                    allocationCache.put(key, allocations);
+                }
+                inputAllocation = allocations[0];
+                outputAllocation = allocations[1];
+
+                currentBlurBitmapHeight = inputBitmap.getHeight();
+                currentBlurBitmapWidth = inputBitmap.getWidth();
+            }
+        }
+
+        private void destroy() {
+            for (Allocation[] allocations : allocationCache.values()) {
+                destroyAllocations(allocations);
+            }
+            allocationCache.clear();
+            blurScript.destroy();
         }
     }
 
-    public static void run(Bitmap outputBitmap, Bitmap inputBitmap, float blurStrength) {
-        blurInputAllocation.copyFrom(inputBitmap);
-        blurScript.setRadius((blurStrength == 0) ? 0.0001f : blurStrength);
-        blurScript.setInput(blurInputAllocation);
-        blurScript.forEach(blurOutputAllocation);
-        blurOutputAllocation.copyTo(outputBitmap);
+    private static void destroyAllocations(Allocation[] allocations) {
+        for (Allocation allocation : allocations) {
+            allocation.destroy();
+        }
     }
 }
@@ -0,0 +1,193 @@
+package se.kjellstrand.blurrybackgroundviewdemo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+/**
+ * Decodes drawable resources at the size they are shown at, on a worker
+ * thread, and keeps the decoded bitmaps in a memory cache keyed by resource id
+ * and size. The cache is bounded by the byte size of the bitmaps and evicts
+ * the least recently used ones. Every resource and size is decoded once no
+ * matter how many views show it. All methods must be called on the UI thread.
+ */
+public class ThumbnailCache {
+
+    // Fraction of the max heap size the cache holds at most by default.
+    private static final int DEFAULT_HEAP_DIVISOR = 16;
+
+    private final Resources resources;
+
+    private final LruCache<Long, Bitmap> cache;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final HandlerThread decodeThread;
+
+    private final Handler decodeHandler;
+
+    // The views waiting for each key being decoded.
+    private final HashMap<Long, ArrayList<ImageView>> pendingViews = new HashMap<Long, ArrayList<ImageView>>();
+
+    // The key each view should show, views whose key has changed since they
+    // requested a decode are not updated when it completes.
+    private final WeakHashMap<ImageView, Long> requestedKeys = new WeakHashMap<ImageView, Long>();
+
+    /**
+     * Create a cache holding at most a 16th of the max heap size, and start
+     * its decode thread.
+     *
+     * @param resources The resources to decode from.
+     */
+    public ThumbnailCache(Resources resources) {
+        this(resources, (int) (Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_DIVISOR));
+    }
+
+    /**
+     * Create a cache and start its decode thread.
+     *
+     * @param resources The resources to decode from.
+     * @param maxBytes Max byte size of the cached bitmaps.
+     */
+    public ThumbnailCache(Resources resources, int maxBytes) {
+        this.resources = resources;
+        cache = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        decodeThread = new HandlerThread(ThumbnailCache.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+        decodeThread.start();
+        decodeHandler = new Handler(decodeThread.getLooper());
+    }
+
+    /**
+     * Get a decoded bitmap if it is in the cache.
+     *
+     * @param resId The drawable resource.
+     * @param width Width the drawable is shown at.
+     * @param height Height the drawable is shown at.
+     * @return The bitmap, or null if it is not decoded yet.
+     */
+    public Bitmap get(int resId, int width, int height) {
+        return cache.get(getKey(resId, width, height));
+    }
+
+    /**
+     * Show a drawable resource in a view, decoded at the given size. If it is
+     * cached it is shown right away, else the view is cleared and the
+     * drawable is shown once decoded. A later call for the same view replaces
+     * the request.
+     *
+     * @param imageView The view to show the drawable in.
+     * @param resId The drawable resource.
+     * @param width Width the drawable is shown at.
+     * @param height Height the drawable is shown at.
+     */
+    public void load(ImageView imageView, final int resId, final int width, final int height) {
+        final Long key = getKey(resId, width, height);
+        requestedKeys.put(imageView, key);
+        Bitmap bitmap = cache.get(key);
+        if (bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+            return;
+        }
+        imageView.setImageBitmap(null);
+
+        ArrayList<ImageView> views = pendingViews.get(key);
+        if (views != null) {
+            // Already being decoded.
+            views.add(imageView);
+            return;
+        }
+        views = new ArrayList<ImageView>();
+        views.add(imageView);
+        pendingViews.put(key, views);
+        decodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap decoded = decode(resId, width, height);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(key, decoded);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Empty the cache.
+     */
+    public void clear() {
+        cache.evictAll();
+    }
+
+    /**
+     * Stop the decode thread, decodes in progress are not delivered and the
+     * cache can not load after this.
+     */
+    public void quit() {
+        decodeThread.quit();
+        pendingViews.clear();
+        requestedKeys.clear();
+    }
+
+    private void deliver(Long key, Bitmap bitmap) {
+        ArrayList<ImageView> views = pendingViews.remove(key);
+        if (views == null || bitmap == null) {
+            return;
+        }
+        cache.put(key, bitmap);
+        for (ImageView view : views) {
+            if (key.equals(requestedKeys.get(view))) {
+                view.setImageBitmap(bitmap);
+            }
+        }
+    }
+
+    // Decode a resource at the given size, subsampled while decoding where
+    // possible and scaled the rest of the way. Called on the decode thread.
+    private Bitmap decode(int resId, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        // Decode the pixels of the resource as they are, without scaling them
+        // to the density of the display, the size is decided here.
+        options.inScaled = false;
+        BitmapFactory.decodeResource(resources, resId, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeResource(resources, resId, options);
+        if (bitmap == null || (bitmap.getWidth() == width && bitmap.getHeight() == height)) {
+            return bitmap;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    private static Long getKey(int resId, int width, int height) {
+        return Long.valueOf(((long) resId << 32) | ((long) (width & 0xffff) << 16) | (height & 0xffff));
+    }
+}